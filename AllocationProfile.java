@@ -0,0 +1,157 @@
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+
+/**
+ * Allocation, GC and retained-heap accounting for one run of a test case.
+ * Bytes allocated by each operation come from the running thread's allocation
+ * counter, and collections are charged to the operation during which the
+ * collector's count went up. The dictionary's retained heap is measured after
+ * the build phase, which ends at the first compress (or at the end of the run
+ * when there is none), and again right after that compress, by collecting
+ * garbage and comparing used heap against a baseline taken once the
+ * dictionary is unreachable again. Definitions shared with the loaded test
+ * case are in the baseline, so they only count towards the estimate.
+ *
+ * Used heap is shared by every thread, so retained sizes are only meaningful
+ * when nothing else runs at the same time; allocation counts are per thread.
+ */
+class AllocationProfile {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final GarbageCollectorMXBean[] COLLECTORS =
+            ManagementFactory.getGarbageCollectorMXBeans().toArray(new GarbageCollectorMXBean[0]);
+
+    private final long[] ops = new long[OperationType.GET_SEQ + 1];
+    private final long[] allocated = new long[OperationType.GET_SEQ + 1];
+    private final long[] collections = new long[OperationType.GET_SEQ + 1];
+    private final long[] collectionMillis = new long[OperationType.GET_SEQ + 1];
+    private long baseline;
+
+    private long opAllocated;
+    private long opCollections;
+    private long opCollectionMillis;
+
+    // retained heap after each phase; words is -1 until the phase was seen
+    private long builtHeap;
+    private long builtEstimate;
+    private int builtWords = -1;
+    private long compressedHeap;
+    private long compressedEstimate;
+    private int compressedWords = -1;
+
+    /**
+     * Gives the total number of collections by every collector so far
+     */
+    static long collectionCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : COLLECTORS) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+
+    /**
+     * Gives the total time spent collecting by every collector so far, in
+     * milliseconds
+     */
+    static long collectionMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : COLLECTORS) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    void beforeOperation(int type, DictionaryEngine dictionary) {
+        if (type == OperationType.COMPRESS && builtWords < 0)
+            recordBuilt(dictionary);
+        // read the GC counters first, as they may allocate
+        opCollections = collectionCount();
+        opCollectionMillis = collectionMillis();
+        opAllocated = THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    void afterOperation(int type, DictionaryEngine dictionary) {
+        allocated[type] += THREADS.getCurrentThreadAllocatedBytes() - opAllocated;
+        collections[type] += collectionCount() - opCollections;
+        collectionMillis[type] += collectionMillis() - opCollectionMillis;
+        ops[type]++;
+        if (type == OperationType.COMPRESS && compressedWords < 0) {
+            compressedHeap = usedHeapAfterGc();
+            compressedEstimate = dictionary.footprintBytes();
+            compressedWords = dictionary.countPrefix("");
+        }
+    }
+
+    /**
+     * Ends the run; a test case without a compress is all build phase
+     */
+    void finish(DictionaryEngine dictionary) {
+        if (builtWords < 0)
+            recordBuilt(dictionary);
+    }
+
+    /**
+     * Takes the baseline the retained sizes are relative to; the caller must
+     * have dropped every reference to the dictionary first
+     */
+    void release() {
+        baseline = usedHeapAfterGc();
+    }
+
+    /**
+     * Prints bytes allocated, collections and collection time for every
+     * operation type that was run, then the retained heap after each phase
+     */
+    void print(PrintStream out) {
+        out.println(String.format("| %-15s | %10s | %10s | %10s | %10s | %10s |", "allocation", "count",
+                "bytes/op", "total MB", "GCs", "GC ms"));
+        for (int type = OperationType.ADD; type <= OperationType.GET_SEQ; type++) {
+            if (ops[type] == 0)
+                continue;
+            out.println(String.format("| %-15s | %10d | %10.1f | %10.2f | %10d | %10d |", OperationType.name(type),
+                    ops[type], (double) allocated[type] / ops[type], allocated[type] / 1e6, collections[type],
+                    collectionMillis[type]));
+        }
+        printRetained(out, "after build", builtHeap - baseline, builtEstimate, builtWords);
+        if (compressedWords >= 0)
+            printRetained(out, "after compress", compressedHeap - baseline, compressedEstimate, compressedWords);
+    }
+
+    private void recordBuilt(DictionaryEngine dictionary) {
+        builtHeap = usedHeapAfterGc();
+        builtEstimate = dictionary.footprintBytes();
+        builtWords = dictionary.countPrefix("");
+    }
+
+    private static void printRetained(PrintStream out, String phase, long heap, long estimate, int words) {
+        out.println(String.format("| retained %-14s | %8d words | %12d bytes measured | %8.1f bytes/word | %12d bytes estimated |",
+                phase, words, heap, words == 0 ? 0.0 : (double) heap / words, estimate));
+    }
+
+    /**
+     * Collects garbage until used heap stops shrinking and gives what the
+     * collector left in use, as the heap pools recorded it at the end of the
+     * last collection
+     */
+    private static long usedHeapAfterGc() {
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            long now = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                MemoryUsage usage = pool.getCollectionUsage();
+                if (pool.getType() == MemoryType.HEAP && usage != null)
+                    now += usage.getUsed();
+            }
+            if (now >= used)
+                break;
+            used = now;
+        }
+        return used;
+    }
+}
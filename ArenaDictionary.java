@@ -0,0 +1,418 @@
+import java.util.Arrays;
+
+/**
+ * A Dictionary backend that keeps the whole trie in parallel primitive arrays.
+ * A node is a 32-bit id indexing those arrays, and every label is a range of
+ * one shared char arena, so the trie costs a handful of arrays instead of
+ * several objects per node.
+ */
+public class ArenaDictionary implements DictionaryEngine {
+    private static final int NIL = -1;
+    private static final int ROOT = 0;
+    private static final int WORD_END = 1;
+
+    // per-node columns, indexed by node id
+    private int[] labelOff;
+    private int[] labelLen;
+    private int[] firstChild;
+    private int[] nextSibling;
+    private int[] flags;
+    private int[] defId;
+    private int[] count; // number of word ends in the subtree, including the node
+    private int nodes; // high-water mark of node ids
+    private int freeNode; // removed nodes, chained through nextSibling
+
+    // shared label arena; labels are never moved, so splits only adjust ranges
+    private char[] chars;
+    private int charsUsed;
+
+    // definitions by id; freed ids are stacked for reuse
+    private String[] defs;
+    private int defsUsed;
+    private int[] freeDefs;
+    private int freeDefsTop;
+
+    // reusable stack of node ids for remove
+    private int[] stack;
+
+    /**
+     * Constructor to initialize the ArenaDictionary
+     */
+    public ArenaDictionary() {
+        int capacity = 16;
+        labelOff = new int[capacity];
+        labelLen = new int[capacity];
+        firstChild = new int[capacity];
+        nextSibling = new int[capacity];
+        flags = new int[capacity];
+        defId = new int[capacity];
+        count = new int[capacity];
+        chars = new char[64];
+        defs = new String[capacity];
+        freeDefs = new int[capacity];
+        stack = new int[capacity];
+        freeNode = NIL;
+        newNode(0, 0); // the root, with an empty label
+    }
+
+    public void add(String word, String definition) {
+        DictionaryEngine.checkWord(word);
+        boolean isNew = find(word) == NIL;
+        int node = ROOT;
+        int idx = 0;
+        if (isNew)
+            count[node]++;
+
+        while (idx < word.length()) {
+            int child = findChild(node, word.charAt(idx));
+            if (child == NIL) {
+                int leaf = newNode(appendChars(word, idx, word.length()), word.length() - idx);
+                flags[leaf] = WORD_END;
+                defId[leaf] = newDef(definition);
+                count[leaf] = 1;
+                nextSibling[leaf] = firstChild[node];
+                firstChild[node] = leaf;
+                return;
+            }
+
+            int off = labelOff[child];
+            int len = Math.min(labelLen[child], word.length() - idx);
+            int match = 1;
+            while (match < len && chars[off + match] == word.charAt(idx + match)) {
+                match++;
+            }
+
+            if (match < labelLen[child]) {
+                // split the child; both halves keep pointing into the same arena range
+                int split = newNode(off + match, labelLen[child] - match);
+                firstChild[split] = firstChild[child];
+                flags[split] = flags[child];
+                defId[split] = defId[child];
+                count[split] = count[child];
+
+                labelLen[child] = match;
+                firstChild[child] = split;
+                flags[child] = 0;
+                defId[child] = NIL;
+            }
+
+            node = child;
+            idx += match;
+            if (isNew)
+                count[node]++;
+        }
+
+        flags[node] |= WORD_END;
+        if (defId[node] == NIL)
+            defId[node] = newDef(definition);
+        else
+            defs[defId[node]] = definition;
+    }
+
+    public void remove(String word) {
+        if (find(word) == NIL)
+            return;
+
+        // walk down, remembering the path so empty nodes can be unlinked bottom-up
+        int depth = 0;
+        int node = ROOT;
+        int idx = 0;
+        count[node]--;
+        while (idx < word.length()) {
+            push(depth++, node);
+            node = findChild(node, word.charAt(idx));
+            idx += labelLen[node];
+            count[node]--;
+        }
+
+        flags[node] &= ~WORD_END;
+        freeDef(defId[node]);
+        defId[node] = NIL;
+
+        while (depth > 0 && flags[node] == 0 && firstChild[node] == NIL) {
+            int parent = stack[--depth];
+            unlink(parent, node);
+            freeNode(node);
+            node = parent;
+        }
+
+        // the lowest node left on the path may now be a plain link; keep the trie compressed
+        if (node != ROOT)
+            mergeChain(node);
+    }
+
+    public String getDefinition(String word) {
+        int node = find(word);
+        return node != NIL ? defs[defId[node]] : null;
+    }
+
+    public String getSequence(String word) {
+        int node = ROOT;
+        int idx = 0;
+        StringBuilder sb = new StringBuilder();
+
+        while (idx < word.length()) {
+            node = findChild(node, word.charAt(idx));
+            if (node == NIL || !labelMatches(node, word, idx))
+                return null;
+            if (sb.length() > 0)
+                sb.append("-");
+            sb.append(chars, labelOff[node], labelLen[node]);
+            idx += labelLen[node];
+        }
+
+        return (flags[node] & WORD_END) != 0 ? sb.toString() : null;
+    }
+
+    public int countPrefix(String prefix) {
+        int node = ROOT;
+        int idx = 0;
+
+        while (idx < prefix.length()) {
+            node = findChild(node, prefix.charAt(idx));
+            if (node == NIL)
+                return 0;
+            int off = labelOff[node];
+            int len = Math.min(labelLen[node], prefix.length() - idx);
+            for (int i = 1; i < len; i++) {
+                if (chars[off + i] != prefix.charAt(idx + i))
+                    return 0;
+            }
+            idx += len;
+        }
+
+        return count[node];
+    }
+
+    public void compress() {
+        // add and remove keep the trie compressed, so there is nothing to merge
+    }
+
+    public void forEachWord(WordVisitor visitor) {
+        StringBuilder word = new StringBuilder();
+        int[] lengths = new int[stack.length]; // length of the parent's word for each stacked node
+        int depth = 0;
+        push(depth++, ROOT);
+        while (depth > 0) {
+            int node = stack[--depth];
+            word.setLength(lengths[depth]);
+            word.append(chars, labelOff[node], labelLen[node]);
+            if ((flags[node] & WORD_END) != 0)
+                visitor.visit(word.toString(), defs[defId[node]]);
+            for (int child = firstChild[node]; child != NIL; child = nextSibling[child]) {
+                push(depth, child);
+                if (lengths.length < stack.length)
+                    lengths = Arrays.copyOf(lengths, stack.length);
+                lengths[depth++] = word.length();
+            }
+        }
+    }
+
+    public long footprintBytes() {
+        long bytes = DictionaryEngine.align(DictionaryEngine.OBJECT_HEADER + 11 * DictionaryEngine.REFERENCE + 5 * 4);
+        bytes += 7 * DictionaryEngine.arrayBytes(labelOff.length, 4);
+        bytes += DictionaryEngine.arrayBytes(chars.length, 2);
+        bytes += DictionaryEngine.arrayBytes(defs.length, DictionaryEngine.REFERENCE);
+        bytes += DictionaryEngine.arrayBytes(freeDefs.length, 4);
+        bytes += DictionaryEngine.arrayBytes(stack.length, 4);
+        for (int i = 0; i < defsUsed; i++) {
+            bytes += DictionaryEngine.stringBytes(defs[i]);
+        }
+        return bytes;
+    }
+
+    /**
+     * Finds the node at which the word ends, or NIL if the word is not stored
+     */
+    private int find(String word) {
+        int node = ROOT;
+        int idx = 0;
+
+        while (idx < word.length()) {
+            node = findChild(node, word.charAt(idx));
+            if (node == NIL || !labelMatches(node, word, idx))
+                return NIL;
+            idx += labelLen[node];
+        }
+
+        return (flags[node] & WORD_END) != 0 ? node : NIL;
+    }
+
+    private int findChild(int node, char c) {
+        int child = firstChild[node];
+        while (child != NIL && chars[labelOff[child]] != c) {
+            child = nextSibling[child];
+        }
+        return child;
+    }
+
+    /**
+     * Checks that the whole label of the node occurs in the word at idx
+     */
+    private boolean labelMatches(int node, String word, int idx) {
+        int off = labelOff[node];
+        int len = labelLen[node];
+        if (len > word.length() - idx)
+            return false;
+        for (int i = 0; i < len; i++) {
+            if (chars[off + i] != word.charAt(idx + i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Merges the node with its children for as long as it has exactly one and
+     * no word ends at it
+     */
+    private void mergeChain(int node) {
+        while ((flags[node] & WORD_END) == 0 && firstChild[node] != NIL && nextSibling[firstChild[node]] == NIL) {
+            int child = firstChild[node];
+            mergeLabels(node, child);
+            firstChild[node] = firstChild[child];
+            flags[node] = flags[child];
+            defId[node] = defId[child];
+            count[node] = count[child];
+            freeNode(child);
+        }
+    }
+
+    private void unlink(int parent, int node) {
+        if (firstChild[parent] == node) {
+            firstChild[parent] = nextSibling[node];
+            return;
+        }
+        int prev = firstChild[parent];
+        while (nextSibling[prev] != node) {
+            prev = nextSibling[prev];
+        }
+        nextSibling[prev] = nextSibling[node];
+    }
+
+    /**
+     * Makes the label of node cover its own characters followed by the child's.
+     * When the child's range already follows in the arena, as it does for any
+     * chain created by a split, this is only a length change.
+     */
+    private void mergeLabels(int node, int child) {
+        int off = labelOff[node];
+        int len = labelLen[node];
+        int childOff = labelOff[child];
+        int childLen = labelLen[child];
+        if (off + len != childOff) {
+            ensureChars(len + childLen);
+            // ensureChars may have replaced the arena, so copy from the current one
+            System.arraycopy(chars, off, chars, charsUsed, len);
+            System.arraycopy(chars, childOff, chars, charsUsed + len, childLen);
+            labelOff[node] = charsUsed;
+            charsUsed += len + childLen;
+        }
+        labelLen[node] = len + childLen;
+    }
+
+    private int appendChars(String word, int from, int to) {
+        ensureChars(to - from);
+        int off = charsUsed;
+        word.getChars(from, to, chars, off);
+        charsUsed += to - from;
+        return off;
+    }
+
+    private void ensureChars(int extra) {
+        if (charsUsed + extra > chars.length)
+            chars = Arrays.copyOf(chars, Math.max(chars.length * 2, charsUsed + extra));
+    }
+
+    private int newNode(int off, int len) {
+        int node;
+        if (freeNode != NIL) {
+            node = freeNode;
+            freeNode = nextSibling[node];
+        } else {
+            if (nodes == labelOff.length)
+                growNodes();
+            node = nodes++;
+        }
+        labelOff[node] = off;
+        labelLen[node] = len;
+        firstChild[node] = NIL;
+        nextSibling[node] = NIL;
+        flags[node] = 0;
+        defId[node] = NIL;
+        count[node] = 0;
+        return node;
+    }
+
+    private void freeNode(int node) {
+        nextSibling[node] = freeNode;
+        freeNode = node;
+    }
+
+    private void growNodes() {
+        int capacity = labelOff.length * 2;
+        labelOff = Arrays.copyOf(labelOff, capacity);
+        labelLen = Arrays.copyOf(labelLen, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        defId = Arrays.copyOf(defId, capacity);
+        count = Arrays.copyOf(count, capacity);
+    }
+
+    private int newDef(String definition) {
+        int id;
+        if (freeDefsTop > 0) {
+            id = freeDefs[--freeDefsTop];
+        } else {
+            if (defsUsed == defs.length)
+                defs = Arrays.copyOf(defs, defs.length * 2);
+            id = defsUsed++;
+        }
+        defs[id] = definition;
+        return id;
+    }
+
+    private void freeDef(int id) {
+        defs[id] = null;
+        if (freeDefsTop == freeDefs.length)
+            freeDefs = Arrays.copyOf(freeDefs, freeDefs.length * 2);
+        freeDefs[freeDefsTop++] = id;
+    }
+
+    private void push(int depth, int node) {
+        if (depth == stack.length)
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        stack[depth] = node;
+    }
+
+    /**
+     * Builds both backends from the add, remove and compress operations of the
+     * given test files and reports their estimated bytes per stored word
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("No testcase file provided");
+            return;
+        }
+
+        for (String path : args) {
+            TestCase testCase = new TestCase(path);
+            DictionaryEngine[] engines = { new Dictionary(), new ArenaDictionary() };
+            System.out.println("Footprint for " + path);
+            for (DictionaryEngine engine : engines) {
+                for (Operation op : testCase.operations) {
+                    if (op.type == OperationType.ADD)
+                        engine.add(op.word, op.definition);
+                    else if (op.type == OperationType.REMOVE)
+                        engine.remove(op.word);
+                    else if (op.type == OperationType.COMPRESS)
+                        engine.compress();
+                }
+                int words = engine.countPrefix("");
+                long bytes = engine.footprintBytes();
+                System.out.println(String.format("  %-16s %8d words %12d bytes %10.1f bytes/word",
+                        engine.getClass().getName(), words, bytes, words == 0 ? 0.0 : (double) bytes / words));
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Keeps definitions in an append-only blob file instead of on the heap. The
+ * heap holds one long per definition, packing its offset in the file and its
+ * UTF-8 length. The text is read and decoded only when get asks for it, so
+ * definitions that are never looked up stay on disk or in the page cache.
+ *
+ * An optional cache keeps recently decoded definitions. It is direct-mapped:
+ * each id has one slot, and a miss replaces whatever the slot held, so its
+ * size is fixed and it costs nothing to maintain. Released and replaced
+ * definitions are not reclaimed from the file. The file is scratch space and
+ * is truncated when the store is created.
+ */
+public class BlobDefinitions implements DefinitionStore, AutoCloseable {
+    private static final int LENGTH_BITS = 24;
+    private static final int MAX_LENGTH = (1 << LENGTH_BITS) - 1;
+
+    private final FileChannel channel;
+    private final ByteBuffer pending = ByteBuffer.allocate(1 << 16); // appended but not yet written
+    private long written; // bytes already in the file
+
+    // per-definition references, indexed by id; freed ids are stacked for reuse
+    private long[] refs = new long[16];
+    private int used;
+    private int[] free = new int[16];
+    private int freeTop;
+
+    private final int[] cachedIds;
+    private final String[] cached;
+    private long lookups;
+    private long misses;
+
+    /**
+     * @param path         The blob file, created or truncated
+     * @param cacheEntries How many decoded definitions to keep, rounded up to
+     *                     a power of two; 0 for no cache
+     */
+    public BlobDefinitions(String path, int cacheEntries) throws IOException {
+        channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        int slots = cacheEntries <= 0 ? 0 : Integer.highestOneBit(cacheEntries);
+        if (slots < cacheEntries)
+            slots <<= 1;
+        cachedIds = new int[slots];
+        cached = new String[slots];
+        for (int i = 0; i < slots; i++) {
+            cachedIds[i] = NONE;
+        }
+    }
+
+    public int put(String definition) {
+        if (definition == null)
+            return NONE;
+        byte[] bytes = definition.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_LENGTH)
+            throw new IllegalArgumentException("Definition longer than " + MAX_LENGTH + " bytes");
+        try {
+            if (bytes.length > pending.remaining())
+                writePending();
+            long offset = written + pending.position();
+            if (bytes.length > pending.capacity())
+                write(ByteBuffer.wrap(bytes));
+            else
+                pending.put(bytes);
+
+            int id;
+            if (freeTop > 0) {
+                id = free[--freeTop];
+            } else {
+                if (used == refs.length) {
+                    long[] grown = new long[refs.length * 2];
+                    System.arraycopy(refs, 0, grown, 0, used);
+                    refs = grown;
+                }
+                id = used++;
+            }
+            refs[id] = offset << LENGTH_BITS | bytes.length;
+            return id;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not append a definition", e);
+        }
+    }
+
+    public String get(int id) {
+        if (id == NONE)
+            return null;
+        lookups++;
+        int slot = id & (cachedIds.length - 1);
+        if (cachedIds.length > 0 && cachedIds[slot] == id)
+            return cached[slot];
+
+        misses++;
+        String definition = new String(read(id), StandardCharsets.UTF_8);
+        if (cachedIds.length > 0) {
+            cachedIds[slot] = id;
+            cached[slot] = definition;
+        }
+        return definition;
+    }
+
+    public int utf8Length(int id) {
+        return id == NONE ? -1 : (int) (refs[id] & MAX_LENGTH);
+    }
+
+    /**
+     * Reads the bytes straight from the file, leaving the cache and the
+     * lookup counts alone
+     */
+    public byte[] utf8(int id) {
+        return id == NONE ? null : read(id);
+    }
+
+    private byte[] read(int id) {
+        long offset = refs[id] >>> LENGTH_BITS;
+        int length = (int) (refs[id] & MAX_LENGTH);
+        byte[] bytes = new byte[length];
+        if (offset >= written) {
+            // still waiting in the write buffer
+            System.arraycopy(pending.array(), (int) (offset - written), bytes, 0, length);
+            return bytes;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        try {
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, offset + buf.position()) < 0)
+                    throw new IOException("Blob file ends before definition " + id);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read definition " + id, e);
+        }
+        return bytes;
+    }
+
+    public void release(int id) {
+        if (id == NONE)
+            return;
+        int slot = id & (cachedIds.length - 1);
+        if (cachedIds.length > 0 && cachedIds[slot] == id) {
+            cachedIds[slot] = NONE;
+            cached[slot] = null;
+        }
+        if (freeTop == free.length) {
+            int[] grown = new int[free.length * 2];
+            System.arraycopy(free, 0, grown, 0, freeTop);
+            free = grown;
+        }
+        free[freeTop++] = id;
+    }
+
+    public long footprintBytes() {
+        long bytes = DictionaryEngine.align(DictionaryEngine.OBJECT_HEADER + 7 * DictionaryEngine.REFERENCE + 3 * 8 + 2 * 4);
+        bytes += DictionaryEngine.arrayBytes(refs.length, 8) + DictionaryEngine.arrayBytes(free.length, 4);
+        bytes += DictionaryEngine.arrayBytes(pending.capacity(), 1);
+        bytes += DictionaryEngine.arrayBytes(cachedIds.length, 4)
+                + DictionaryEngine.arrayBytes(cached.length, DictionaryEngine.REFERENCE);
+        for (String definition : cached) {
+            bytes += DictionaryEngine.stringBytes(definition);
+        }
+        return bytes;
+    }
+
+    /**
+     * Gives the number of get calls for a definition so far
+     */
+    public long lookups() {
+        return lookups;
+    }
+
+    /**
+     * Gives the number of those that had to read the file
+     */
+    public long misses() {
+        return misses;
+    }
+
+    private void writePending() throws IOException {
+        pending.flip();
+        write(pending);
+        pending.clear();
+    }
+
+    private void write(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            written += channel.write(buf, written);
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Builds the corpus into a Dictionary with heap definitions and into one
+     * with blob definitions for each cache size, compares their estimated
+     * heap, and times getDefinition for words drawn from a Zipf distribution,
+     * so that a few words take most lookups. Every blob-backed answer is
+     * checked against the heap one.
+     *
+     * Usage: java BlobDefinitions [--cache=0,1024,...] [--lookups=N]
+     * [--zipf=S] [--blob=path] [corpus file ...]
+     */
+    public static void main(String[] args) throws IOException {
+        int[] caches = { 0, 1024, 16384 };
+        int lookups = 200_000;
+        double zipf = 1.0;
+        String blob = null;
+        List<String> corpus = new ArrayList<>();
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--cache=")) {
+                String[] parts = value.split(",");
+                caches = new int[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    caches[i] = Integer.parseInt(parts[i]);
+                }
+            } else if (arg.startsWith("--lookups=")) {
+                lookups = Integer.parseInt(value);
+            } else if (arg.startsWith("--zipf=")) {
+                zipf = Double.parseDouble(value);
+            } else if (arg.startsWith("--blob=")) {
+                blob = value;
+            } else {
+                corpus.add(arg);
+            }
+        }
+        if (corpus.isEmpty()) {
+            corpus.add("tests/tc_19_large_no_compression.txt");
+            corpus.add("tests/tc_20_large_compression.txt");
+        }
+        File file = blob != null ? new File(blob) : File.createTempFile("definitions", ".blob");
+        if (blob == null)
+            file.deleteOnExit();
+
+        List<String> words = new ArrayList<>();
+        List<String> definitions = new ArrayList<>();
+        SnapshotBenchmark.parse(corpus, words, definitions);
+        String[] keys = new String[lookups];
+        ZipfSampler sampler = new ZipfSampler(words.size(), zipf);
+        SplittableRandom random = new SplittableRandom(7);
+        for (int i = 0; i < lookups; i++) {
+            keys[i] = words.get((int) sampler.sample(random::nextDouble) - 1);
+        }
+
+        Dictionary heap = SnapshotBenchmark.rebuild(words, definitions);
+        String[] expected = new String[lookups];
+        long heapTime = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                expected[i] = heap.getDefinition(keys[i]);
+            }
+            heapTime = Math.min(heapTime, System.nanoTime() - start);
+        }
+        System.out.println(String.format("%d words, %d lookups (Zipf s=%.2f)", heap.countPrefix(""), lookups, zipf));
+        System.out.println(String.format("| %-18s | %14s | %12s | %9s |", "definitions", "heap estimate", "per lookup",
+                "misses"));
+        System.out.println(String.format("| %-18s | %11.1f MB | %9.1f ns | %9s |", "heap", heap.footprintBytes() / 1e6,
+                (double) heapTime / lookups, "-"));
+
+        for (int cache : caches) {
+            try (BlobDefinitions store = new BlobDefinitions(file.getPath(), cache)) {
+                Dictionary dictionary = new Dictionary(store);
+                for (int i = 0; i < words.size(); i++) {
+                    dictionary.add(words.get(i), definitions.get(i));
+                }
+                long time = Long.MAX_VALUE;
+                long misses = 0;
+                for (int round = 0; round < 5; round++) {
+                    long before = store.misses();
+                    long start = System.nanoTime();
+                    for (int i = 0; i < lookups; i++) {
+                        if (!expected[i].equals(dictionary.getDefinition(keys[i])))
+                            throw new IllegalStateException("blob definition differs for " + keys[i]);
+                    }
+                    time = Math.min(time, System.nanoTime() - start);
+                    misses = store.misses() - before;
+                }
+                System.out.println(String.format("| %-18s | %11.1f MB | %9.1f ns | %8.1f%% |", "blob, cache " + cache,
+                        dictionary.footprintBytes() / 1e6, (double) time / lookups, 100.0 * misses / lookups));
+            }
+        }
+    }
+}
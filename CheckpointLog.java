@@ -0,0 +1,620 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.zip.CRC32C;
+
+/**
+ * Incremental checkpoints of a Dictionary into a log-structured file. Every
+ * node gets a page number the first time it is written. A node record names
+ * its children by page, so rewriting a node never forces its parent to be
+ * rewritten. A checkpoint appends a record for each node that add, a split or
+ * removeHelper marked dirty since the previous one. It then appends a commit
+ * record naming the root page and forces the file. Those marks also cover
+ * every ancestor of a change, so the checkpoint finds the dirty nodes without
+ * visiting any clean subtree. Its cost grows with the churn, not with the
+ * size of the dictionary.
+ *
+ * Rewritten and removed nodes leave stale records behind. Once the file has
+ * grown by the given ratio since it was last compacted, a background thread
+ * copies the records reachable from the latest commit into a new file. The
+ * next checkpoint appends whatever was written meanwhile and swaps the new
+ * file in. All numbers are big-endian.
+ *
+ * <pre>
+ * header:  int magic ("DCL1"), int version
+ * record:  int payload length, int CRC32C of the payload, payload
+ * node:    byte 1, int page, byte flags (1 if a word ends here), int count, int bitmap,
+ *          int label length, label (one byte per character),
+ *          int definition length (-1 for none), definition (UTF-8), int child page...
+ * commit:  byte 2, long sequence, int root page, int next free page
+ * </pre>
+ *
+ * Recovery keeps the records up to the last intact commit, truncates the
+ * rest, and links the latest record of each page from the committed root.
+ * Checkpoints must not run while the dictionary is being changed.
+ */
+public class CheckpointLog implements AutoCloseable {
+    static final int MAGIC = 0x44434C31;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 8;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final byte NODE = 1;
+    private static final byte COMMIT = 2;
+    private static final long MIN_COMPACT_BYTES = 1 << 20;
+
+    /**
+     * Receives the intact records of a log in file order
+     */
+    interface RecordVisitor {
+        void visit(long offset, ByteBuffer payload);
+    }
+
+    private final String path;
+    private final double compactRatio;
+    private final Dictionary dictionary;
+    private final CRC32C crc = new CRC32C();
+    private FileChannel channel;
+    private int nextPage = 1;
+    private long sequence;
+    private long compactedSize; // size of the file after the last compaction or full checkpoint
+    private Compaction compaction; // started and not yet swapped in
+    private ByteBuffer record = ByteBuffer.allocate(256);
+    private TrieNode[] stack = new TrieNode[16];
+    private TrieNode[] written = new TrieNode[16]; // nodes of the checkpoint being written, cleaned once it commits
+
+    // totals, for reporting
+    private long nodesWritten;
+    private long bytesWritten;
+    private long compactions;
+
+    /**
+     * Opens the log at the path, recovering the dictionary it holds, or starts
+     * an empty one
+     *
+     * @param path         The log file
+     * @param compactRatio How many times its compacted size the file may grow
+     *                     to before it is compacted again
+     * @throws IOException If the file cannot be opened or is not a checkpoint
+     *                     log
+     */
+    public CheckpointLog(String path, double compactRatio) throws IOException {
+        this.path = path;
+        this.compactRatio = compactRatio;
+        channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            dictionary = recover();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        compactedSize = channel.size();
+    }
+
+    /**
+     * Gives the dictionary this log checkpoints
+     */
+    public Dictionary dictionary() {
+        return dictionary;
+    }
+
+    private Dictionary recover() throws IOException {
+        if (channel.size() < HEADER_BYTES) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            channel.truncate(0);
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+            return new Dictionary();
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (header.hasRemaining()) {
+            channel.read(header, header.position());
+        }
+        if (header.getInt(0) != MAGIC)
+            throw new IOException("Not a checkpoint log: " + path);
+        if (header.getInt(4) != VERSION)
+            throw new IOException("Unsupported checkpoint log version " + header.getInt(4) + ": " + path);
+
+        // first find the last intact commit; whatever follows it never committed
+        long[] committed = { HEADER_BYTES };
+        scan(channel, HEADER_BYTES, channel.size(), (offset, payload) -> {
+            if (payload.get(0) == COMMIT)
+                committed[0] = offset + RECORD_HEADER_BYTES + payload.remaining();
+        });
+        if (committed[0] < channel.size()) {
+            channel.truncate(committed[0]);
+            channel.force(true);
+        }
+
+        // then build the latest version of every page, later records replacing earlier ones
+        KeyBuffer keys = new KeyBuffer();
+        TrieNode[][] pages = { new TrieNode[16] };
+        int[][][] childPages = { new int[16][] };
+        // kept aside until the trie is linked, so replaced versions never reach the store
+        String[][] pageDefinitions = { new String[16] };
+        int[] root = { 0 };
+        scan(channel, HEADER_BYTES, committed[0], (offset, payload) -> {
+            if (payload.get() == COMMIT) {
+                sequence = payload.getLong();
+                root[0] = payload.getInt();
+                nextPage = payload.getInt();
+                return;
+            }
+            int page = payload.getInt();
+            TrieNode node = new TrieNode(KeyBuffer.EMPTY, 0, 0);
+            node.page = page;
+            node.isWordEnd = (payload.get() & 1) != 0;
+            node.count = payload.getInt();
+            node.bitmap = payload.getInt();
+            keys.appendLatin1(node, payload, payload.getInt());
+            int definitionLength = payload.getInt();
+            String definition = null;
+            if (definitionLength >= 0) {
+                definition = new String(payload.array(), payload.arrayOffset() + payload.position(), definitionLength,
+                        StandardCharsets.UTF_8);
+                payload.position(payload.position() + definitionLength);
+            }
+            int[] children = new int[Integer.bitCount(node.bitmap)];
+            for (int i = 0; i < children.length; i++) {
+                children[i] = payload.getInt();
+            }
+            if (page >= pages[0].length) {
+                int size = Math.max(pages[0].length * 2, page + 1);
+                pages[0] = Arrays.copyOf(pages[0], size);
+                childPages[0] = Arrays.copyOf(childPages[0], size);
+                pageDefinitions[0] = Arrays.copyOf(pageDefinitions[0], size);
+            }
+            pages[0][page] = node;
+            childPages[0][page] = children;
+            pageDefinitions[0][page] = definition;
+        });
+        channel.position(channel.size());
+        if (root[0] == 0)
+            return new Dictionary();
+
+        // link the committed trie; pages it no longer reaches are dropped
+        DefinitionStore definitions = new HeapDefinitions();
+        int[] pending = new int[16];
+        int depth = 0;
+        pending[depth++] = root[0];
+        while (depth > 0) {
+            int page = pending[--depth];
+            TrieNode node = pages[0][page];
+            int[] children = childPages[0][page];
+            node.dirty = false;
+            node.defId = definitions.put(pageDefinitions[0][page]);
+            if (children.length == 0)
+                continue;
+            node.children = new TrieNode[children.length];
+            if (depth + children.length > pending.length)
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, depth + children.length));
+            for (int i = 0; i < children.length; i++) {
+                node.children[i] = pages[0][children[i]];
+                if (node.children[i] == null)
+                    throw new IOException("Checkpoint log " + path + " has no record for page " + children[i]);
+                pending[depth++] = children[i];
+            }
+        }
+        return new Dictionary(pages[0][root[0]], keys, definitions);
+    }
+
+    /**
+     * Reads the records in [from, to) in order, stopping at the first one that
+     * is cut short or fails its checksum
+     *
+     * @return The offset just past the last intact record
+     */
+    static long scan(FileChannel channel, long from, long to, RecordVisitor visitor) throws IOException {
+        channel.position(from);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+        CRC32C crc = new CRC32C();
+        byte[] scratch = new byte[256];
+        long at = from;
+        while (to - at >= RECORD_HEADER_BYTES) {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length < 1 || length > to - at - RECORD_HEADER_BYTES)
+                break;
+            if (length > scratch.length)
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            in.readFully(scratch, 0, length);
+            crc.reset();
+            crc.update(scratch, 0, length);
+            if ((int) crc.getValue() != checksum)
+                break;
+            visitor.visit(at, ByteBuffer.wrap(scratch, 0, length));
+            at += RECORD_HEADER_BYTES + length;
+        }
+        return at;
+    }
+
+    /**
+     * Appends every dirty node and a commit to the log and forces it. The
+     * nodes are marked clean only once the force succeeds; if anything fails,
+     * the appended records are truncated away and the nodes stay dirty. A
+     * compaction that has finished is swapped in first.
+     *
+     * @return The number of bytes appended
+     * @throws IOException If the log could not be written, or a finished
+     *                     compaction failed
+     */
+    public synchronized long checkpoint() throws IOException {
+        swapIfCompacted();
+        TrieNode root = dictionary.root();
+        if (!root.dirty)
+            return 0;
+        boolean full = root.page == 0;
+        long start = channel.size();
+        int firstPage = nextPage;
+        int count = 0;
+        int depth = 0;
+        channel.position(start);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+        try {
+            if (root.page == 0)
+                root.page = nextPage++;
+            stack[depth++] = root;
+            while (depth > 0) {
+                TrieNode node = stack[--depth];
+                stack[depth] = null;
+                if (count == written.length)
+                    written = Arrays.copyOf(written, count * 2);
+                written[count++] = node;
+                for (TrieNode child : node.children) {
+                    if (child.page == 0)
+                        child.page = nextPage++;
+                    if (child.dirty) {
+                        if (depth == stack.length)
+                            stack = Arrays.copyOf(stack, depth * 2);
+                        stack[depth++] = child;
+                    }
+                }
+                writeNode(out, node);
+            }
+
+            record.clear();
+            record.put(COMMIT).putLong(sequence + 1).putInt(root.page).putInt(nextPage);
+            writeRecord(out);
+            out.flush();
+            channel.force(false);
+        } catch (IOException | RuntimeException e) {
+            // nothing is committed: hand the new pages back and drop the partial
+            // records, so the nodes are still dirty and unpaged for the next try
+            for (int i = 0; i < count; i++) {
+                if (written[i].page >= firstPage)
+                    written[i].page = 0;
+                written[i] = null;
+            }
+            for (int i = 0; i < depth; i++) {
+                if (stack[i].page >= firstPage)
+                    stack[i].page = 0;
+                stack[i] = null;
+            }
+            nextPage = firstPage;
+            try {
+                channel.truncate(start);
+            } catch (IOException | RuntimeException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        // the commit is on disk, so the nodes are clean only now
+        for (int i = 0; i < count; i++) {
+            written[i].dirty = false;
+            written[i] = null;
+        }
+        sequence++;
+        nodesWritten += count;
+
+        long bytes = channel.size() - start;
+        bytesWritten += bytes;
+        if (full)
+            compactedSize = channel.size();
+        else if (compaction == null && channel.size() > MIN_COMPACT_BYTES && channel.size() > compactRatio * compactedSize)
+            startCompaction();
+        return bytes;
+    }
+
+    private void writeNode(DataOutputStream out, TrieNode node) throws IOException {
+        byte[] definition = dictionary.definitions().utf8(node.defId);
+        int length = 1 + 4 + 1 + 4 + 4 + 4 + node.len + 4 + (definition == null ? 0 : definition.length)
+                + 4 * node.children.length;
+        if (record.capacity() < length)
+            record = ByteBuffer.allocate(Math.max(length, record.capacity() * 2));
+        record.clear();
+        record.put(NODE).putInt(node.page).put((byte) (node.isWordEnd ? 1 : 0)).putInt(node.count).putInt(node.bitmap);
+        record.putInt(node.len);
+        for (int i = 0; i < node.len; i++) {
+            record.put((byte) node.src[node.off + i]);
+        }
+        if (definition == null)
+            record.putInt(-1);
+        else
+            record.putInt(definition.length).put(definition);
+        for (TrieNode child : node.children) {
+            record.putInt(child.page);
+        }
+        writeRecord(out);
+    }
+
+    private void writeRecord(DataOutputStream out) throws IOException {
+        crc.reset();
+        crc.update(record.array(), 0, record.position());
+        out.writeInt(record.position());
+        out.writeInt((int) crc.getValue());
+        out.write(record.array(), 0, record.position());
+    }
+
+    private void startCompaction() throws IOException {
+        compaction = new Compaction(channel.size());
+        compaction.thread.start();
+    }
+
+    /**
+     * Appends what was checkpointed since a finished compaction began to the
+     * compacted file, then replaces the log with it and forces the directory,
+     * so the rename is durable before anything is appended to the new log
+     */
+    private void swapIfCompacted() throws IOException {
+        if (compaction == null || compaction.thread.isAlive())
+            return;
+        Compaction done = compaction;
+        compaction = null;
+        if (done.failure != null) {
+            Files.deleteIfExists(Paths.get(done.target));
+            throw new IOException("Compaction of " + path + " failed", done.failure);
+        }
+        try (FileChannel out = FileChannel.open(Paths.get(done.target), StandardOpenOption.WRITE)) {
+            long at = out.size();
+            long end = channel.size();
+            out.position(at);
+            for (long from = done.end; from < end; ) {
+                from += channel.transferTo(from, end - from, out);
+            }
+            out.force(true);
+        }
+        Files.move(Paths.get(done.target), Paths.get(path), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        TrieSnapshot.forceDirectory(Paths.get(path));
+        channel.close();
+        channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        compactedSize = channel.size();
+        compactions++;
+    }
+
+    /**
+     * Copies the pages reachable from the commit that ends at the given offset
+     * into a new file. The log only grows past that offset meanwhile, so the
+     * copy reads it through a channel of its own without any locking.
+     */
+    private final class Compaction implements Runnable {
+        final long end;
+        final String target = path + ".compact";
+        final Thread thread = new Thread(this, "checkpoint-compaction");
+        volatile IOException failure;
+
+        Compaction(long end) {
+            this.end = end;
+            thread.setDaemon(true);
+        }
+
+        public void run() {
+            try (FileChannel source = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+                    FileChannel target = FileChannel.open(Paths.get(this.target), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long[][] offsets = { new long[16] };
+                long[] commit = new long[3]; // sequence, root page, next free page
+                scan(source, HEADER_BYTES, end, (offset, payload) -> {
+                    if (payload.get() == COMMIT) {
+                        commit[0] = payload.getLong();
+                        commit[1] = payload.getInt();
+                        commit[2] = payload.getInt();
+                        return;
+                    }
+                    int page = payload.getInt();
+                    if (page >= offsets[0].length)
+                        offsets[0] = Arrays.copyOf(offsets[0], Math.max(offsets[0].length * 2, page + 1));
+                    offsets[0][page] = offset;
+                });
+
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(target),
+                        1 << 16));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+                ByteBuffer payload = ByteBuffer.allocate(256);
+                int[] pending = new int[16];
+                int depth = 0;
+                pending[depth++] = (int) commit[1];
+                while (depth > 0) {
+                    long offset = offsets[0][pending[--depth]];
+                    header.clear();
+                    readFully(source, header, offset);
+                    int length = header.getInt(0);
+                    if (payload.capacity() < length)
+                        payload = ByteBuffer.allocate(Math.max(length, payload.capacity() * 2));
+                    payload.clear().limit(length);
+                    readFully(source, payload, offset + RECORD_HEADER_BYTES);
+                    out.write(header.array(), 0, RECORD_HEADER_BYTES);
+                    out.write(payload.array(), 0, length);
+
+                    // the child pages are the last ints of the record
+                    int children = Integer.bitCount(payload.getInt(1 + 4 + 1 + 4));
+                    if (depth + children > pending.length)
+                        pending = Arrays.copyOf(pending, Math.max(pending.length * 2, depth + children));
+                    for (int i = 0; i < children; i++) {
+                        pending[depth++] = payload.getInt(length - 4 * (children - i));
+                    }
+                }
+
+                ByteBuffer last = ByteBuffer.allocate(1 + 8 + 4 + 4);
+                last.put(COMMIT).putLong(commit[0]).putInt((int) commit[1]).putInt((int) commit[2]);
+                CRC32C checksum = new CRC32C();
+                checksum.update(last.array(), 0, last.position());
+                out.writeInt(last.position());
+                out.writeInt((int) checksum.getValue());
+                out.write(last.array(), 0, last.position());
+                out.flush();
+                target.force(true);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0)
+                throw new IOException("Unexpected end of checkpoint log");
+            position += n;
+        }
+    }
+
+    public long nodesWritten() {
+        return nodesWritten;
+    }
+
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    public long compactions() {
+        return compactions;
+    }
+
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Waits for a running compaction, swaps it in and closes the log. Changes
+     * since the last checkpoint are not written.
+     *
+     * @throws IOException If the compaction failed
+     */
+    public synchronized void close() throws IOException {
+        if (compaction != null) {
+            try {
+                compaction.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                swapIfCompacted();
+            } finally {
+                channel.close();
+            }
+            return;
+        }
+        channel.close();
+    }
+
+    /**
+     * Checkpoints a dictionary built from the corpus, then alternates rounds
+     * of random adds and removes with incremental checkpoints, comparing them
+     * with saving a full snapshot. Finally it reopens the log and checks that
+     * recovery gives back exactly the words the dictionary holds.
+     *
+     * Usage: java CheckpointLog [--churn=N] [--rounds=N] [--ratio=F]
+     * [--log=path] [--seed=N] [corpus file ...]
+     */
+    public static void main(String[] args) throws IOException {
+        int churn = 2000;
+        int rounds = 20;
+        double ratio = 2;
+        long seed = 1;
+        String log = null;
+        List<String> corpus = new ArrayList<>();
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--churn="))
+                churn = Integer.parseInt(value);
+            else if (arg.startsWith("--rounds="))
+                rounds = Integer.parseInt(value);
+            else if (arg.startsWith("--ratio="))
+                ratio = Double.parseDouble(value);
+            else if (arg.startsWith("--seed="))
+                seed = Long.parseLong(value);
+            else if (arg.startsWith("--log="))
+                log = value;
+            else
+                corpus.add(arg);
+        }
+        if (corpus.isEmpty()) {
+            corpus.add("tests/tc_19_large_no_compression.txt");
+            corpus.add("tests/tc_20_large_compression.txt");
+        }
+        File file = log != null ? new File(log) : File.createTempFile("dictionary", ".checkpoints");
+        File snapshot = File.createTempFile("dictionary", ".snapshot");
+        snapshot.deleteOnExit();
+        if (log == null)
+            file.deleteOnExit();
+        Files.deleteIfExists(file.toPath());
+
+        List<String> words = new ArrayList<>();
+        List<String> definitions = new ArrayList<>();
+        SnapshotBenchmark.parse(corpus, words, definitions);
+
+        CheckpointLog checkpoints = new CheckpointLog(file.getPath(), ratio);
+        Dictionary dictionary = checkpoints.dictionary();
+        for (int i = 0; i < words.size(); i++) {
+            dictionary.add(words.get(i), definitions.get(i));
+        }
+        long start = System.nanoTime();
+        long bytes = checkpoints.checkpoint();
+        System.out.println(String.format("full checkpoint of %d words: %d nodes, %d bytes in %.1f ms",
+                dictionary.countPrefix(""), checkpoints.nodesWritten(), bytes, (System.nanoTime() - start) / 1e6));
+
+        System.out.println(String.format("| %5s | %8s | %10s | %10s | %12s | %11s |", "round", "nodes", "bytes",
+                "checkpoint", "full save", "log size"));
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int round = 1; round <= rounds; round++) {
+            for (int i = 0; i < churn; i++) {
+                int w = random.nextInt(words.size());
+                if (random.nextBoolean())
+                    dictionary.add(words.get(w), "revised in round " + round);
+                else
+                    dictionary.remove(words.get(w));
+            }
+            long nodes = checkpoints.nodesWritten();
+            start = System.nanoTime();
+            bytes = checkpoints.checkpoint();
+            long incremental = System.nanoTime() - start;
+            start = System.nanoTime();
+            dictionary.save(snapshot.getPath());
+            long full = System.nanoTime() - start;
+            System.out.println(String.format("| %5d | %8d | %10d | %7.1f ms | %9.1f ms | %11d |", round,
+                    checkpoints.nodesWritten() - nodes, bytes, incremental / 1e6, full / 1e6, checkpoints.size()));
+        }
+        checkpoints.close();
+        System.out.println(String.format("%d compactions; full snapshot is %d bytes", checkpoints.compactions(),
+                snapshot.length()));
+
+        start = System.nanoTime();
+        CheckpointLog reopened = new CheckpointLog(file.getPath(), ratio);
+        long recovery = System.nanoTime() - start;
+        SnapshotBenchmark.verify(dictionary, reopened.dictionary());
+        reopened.close();
+        System.out.println(String.format("recovered %d words in %.1f ms", reopened.dictionary().countPrefix(""),
+                recovery / 1e6));
+    }
+}
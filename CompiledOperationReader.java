@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a compiled test case through a read-only memory mapping of the file,
+ * so loading it is page-cache reads plus one String per key. Interned strings
+ * are decoded once, when the reader is opened, and shared by every operation
+ * that uses them.
+ */
+class CompiledOperationReader implements TestCaseReader {
+    private final MappedByteBuffer buf;
+    private final int count;
+    private final String[] strings;
+    private byte[] scratch = new byte[256];
+
+    CompiledOperationReader(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Compiled test case too large to map: " + path);
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (buf.getInt() != CompiledTestCase.MAGIC)
+                throw new IOException("Not a compiled test case: " + path);
+            int version = buf.getInt();
+            if (version != CompiledTestCase.VERSION)
+                throw new IOException("Unsupported compiled test case version " + version + ": " + path);
+            count = buf.getInt();
+            strings = new String[readVarint()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readString();
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated compiled test case: " + path);
+        }
+    }
+
+    public int readCount() {
+        return count;
+    }
+
+    public Operation next() throws IOException {
+        if (!buf.hasRemaining())
+            return null;
+        try {
+            int type = buf.get();
+            if (type == OperationType.COMPRESS)
+                return new Operation(OperationType.COMPRESS, null, null, null);
+            String word = readString();
+            switch (type) {
+                case OperationType.ADD:
+                    return new Operation(OperationType.ADD, word, strings[readVarint()], null);
+                case OperationType.REMOVE:
+                    return new Operation(OperationType.REMOVE, word, null, null);
+                case OperationType.GET_DEF:
+                    return new Operation(OperationType.GET_DEF, word, null, strings[readVarint()]);
+                case OperationType.GET_SEQ:
+                    return new Operation(OperationType.GET_SEQ, word, null, readString());
+                case OperationType.COUNT:
+                    return new Operation(word, buf.getInt());
+                default:
+                    throw new IOException("Invalid operation type: " + type + " at byte " + (buf.position() - 1));
+            }
+        } catch (BufferUnderflowException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt compiled test case at byte " + buf.position());
+        }
+    }
+
+    public long bytesRead() {
+        return buf.position();
+    }
+
+    public void close() {
+        // the mapping is released when the buffer is collected
+    }
+
+    private int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = buf.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IOException("Malformed varint at byte " + buf.position());
+    }
+
+    private String readString() throws IOException {
+        int header = readVarint();
+        int length = header >>> 1;
+        if (length > scratch.length)
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        buf.get(scratch, 0, length);
+        return new String(scratch, 0, length, (header & 1) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles text test cases into a binary form that loads without tokenizing.
+ * All numbers are big-endian; lengths and table indices are unsigned LEB128
+ * varints.
+ *
+ * <pre>
+ * header:     int magic ("DTC1"), int version, int operation count, varint string count
+ * strings:    string...                 definitions and getDefinition expectations, each once
+ * operations: byte type, then by type
+ *             add            key, varint definition index
+ *             remove         key
+ *             getDefinition  key, varint expectation index
+ *             getSequence    key, string expectation
+ *             countPrefix    key, int expected count
+ *             compress       nothing
+ * string:     varint (UTF-8 length << 1 | 1 if not ASCII), UTF-8 bytes
+ * </pre>
+ *
+ * Usage: java CompiledTestCase (test case file | directory) ...
+ * writes name.bin next to every name.txt given or found in a directory.
+ */
+public class CompiledTestCase {
+    static final int MAGIC = 0x44544331;
+    static final int VERSION = 1;
+    static final String EXTENSION = ".bin";
+
+    /**
+     * Tells whether the file starts like a compiled test case
+     */
+    static boolean isCompiled(String path) throws IOException {
+        try (InputStream in = new FileInputStream(path)) {
+            int magic = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = in.read();
+                if (b < 0)
+                    return false;
+                magic = magic << 8 | b;
+            }
+            return magic == MAGIC;
+        }
+    }
+
+    /**
+     * Writes the operations of a test case in compiled form
+     */
+    static void write(Operation[] operations, String path) throws IOException {
+        // intern definitions and getDefinition expectations, which repeat across a test case
+        Map<String, Integer> index = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        for (Operation op : operations) {
+            String shared = op.type == OperationType.ADD ? op.definition
+                    : op.type == OperationType.GET_DEF ? op.expected : null;
+            if (shared != null && !index.containsKey(shared)) {
+                index.put(shared, strings.size());
+                strings.add(shared);
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(operations.length);
+            writeVarint(out, strings.size());
+            for (String s : strings) {
+                writeString(out, s);
+            }
+            for (Operation op : operations) {
+                out.writeByte(op.type);
+                if (op.type == OperationType.COMPRESS)
+                    continue;
+                writeString(out, op.word);
+                switch (op.type) {
+                    case OperationType.ADD:
+                        writeVarint(out, index.get(op.definition));
+                        break;
+                    case OperationType.GET_DEF:
+                        writeVarint(out, index.get(op.expected));
+                        break;
+                    case OperationType.GET_SEQ:
+                        writeString(out, op.expected);
+                        break;
+                    case OperationType.COUNT:
+                        out.writeInt(op.expectedCount);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length << 1 | (bytes.length != s.length() ? 1 : 0));
+        out.write(bytes);
+    }
+
+    static String compiledPath(String path) {
+        String base = path.endsWith(".txt") ? path.substring(0, path.length() - 4) : path;
+        return base + EXTENSION;
+    }
+
+    static void compile(String path) {
+        TestCase testCase = new TestCase(path);
+        String target = compiledPath(path);
+        try {
+            write(testCase.operations, target);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write " + target, e);
+        }
+        System.out.println(String.format("%s: %d operations, %d -> %d bytes", target, testCase.operations.length,
+                testCase.bytes, new File(target).length()));
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("No testcase file provided");
+            return;
+        }
+
+        for (String arg : args) {
+            File file = new File(arg);
+            if (!file.isDirectory()) {
+                compile(arg);
+                continue;
+            }
+            File[] files = file.listFiles();
+            if (files == null)
+                continue;
+            Arrays.sort(files);
+            for (File testFile : files) {
+                if (testFile.isFile() && testFile.getName().endsWith(".txt"))
+                    compile(testFile.getPath());
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Times path compression on deep chains of single-child nodes whose labels are
+ * not contiguous in memory, the worst case for merging. Removals merge the
+ * chain as it forms, leaving the copies each merge made in the key buffer;
+ * they outnumber the live characters, so compress() then repacks the live
+ * labels. Both phases are timed, and the heap estimate compress() gives back
+ * is reported.
+ *
+ * Usage: java CompressBenchmark [depth ...]
+ */
+public class CompressBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+
+    /**
+     * Builds a dictionary holding the words ("a" * i + "b") for i up to depth.
+     * Each of them splits the previous leaf, so the "a" nodes form a comb of
+     * depth links that all take their characters from different words.
+     */
+    static Dictionary buildComb(int depth) {
+        Dictionary dictionary = new Dictionary();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= depth; i++) {
+            sb.append('a');
+            dictionary.add(sb + "b", "chain word " + i);
+        }
+        return dictionary;
+    }
+
+    /**
+     * Removes every word but the deepest one, which turns the comb into a
+     * chain of depth links
+     */
+    static void removeTeeth(Dictionary dictionary, int depth) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i < depth; i++) {
+            sb.append('a');
+            dictionary.remove(sb + "b");
+        }
+    }
+
+    static void run(int depth) {
+        String word = "a".repeat(depth) + "b";
+        long removeTotal = 0;
+        long compressTotal = 0;
+        long reclaimed = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            Dictionary dictionary = buildComb(depth);
+            long start = System.nanoTime();
+            removeTeeth(dictionary, depth);
+            long removed = System.nanoTime();
+            long before = dictionary.footprintBytes();
+            long packStart = System.nanoTime();
+            dictionary.compress();
+            long compressed = System.nanoTime();
+            reclaimed = before - dictionary.footprintBytes();
+            if (!word.equals(dictionary.getSequence(word)))
+                throw new IllegalStateException("chain of depth " + depth + " was not merged into one node");
+            if (round >= WARMUP_ROUNDS) {
+                removeTotal += removed - start;
+                compressTotal += compressed - packStart;
+            }
+        }
+        double removeMean = (double) removeTotal / MEASURED_ROUNDS;
+        double compressMean = (double) compressTotal / MEASURED_ROUNDS;
+        System.out.println(String.format("| %8d | %12.3f ms | %10.1f ns/word | %12.3f ms | %9.1f KB |", depth,
+                removeMean / 1e6, removeMean / (depth - 1), compressMean / 1e6, reclaimed / 1e3));
+    }
+
+    public static void main(String[] args) {
+        int[] depths = { 1000, 2000, 4000, 8000 };
+        if (args.length > 0) {
+            depths = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                depths[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println(String.format("| %8s | %15s | %18s | %15s | %12s |", "depth", "removals", "per removal",
+                "compress", "reclaimed"));
+        for (int depth : depths) {
+            run(depth);
+        }
+    }
+}
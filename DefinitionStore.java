@@ -0,0 +1,48 @@
+/**
+ * Where a Dictionary keeps its definitions. A node holds only the id put gave
+ * back for its definition, so the text can live on the heap or elsewhere
+ * without the trie knowing.
+ */
+interface DefinitionStore {
+    /**
+     * The id of a missing (null) definition
+     */
+    int NONE = -1;
+
+    /**
+     * Stores a definition
+     *
+     * @return Its id, or NONE for null
+     */
+    int put(String definition);
+
+    /**
+     * Gives the definition with the given id, or null for NONE
+     */
+    String get(int id);
+
+    /**
+     * Gives the length of the UTF-8 encoding of the definition with the given
+     * id, or -1 for NONE, without reading or caching the text where the store
+     * can avoid it
+     */
+    int utf8Length(int id);
+
+    /**
+     * Gives the UTF-8 encoding of the definition with the given id, or null
+     * for NONE. Meant for walks that visit every definition once, such as
+     * saves and checkpoints, so it bypasses any cache of decoded definitions.
+     */
+    byte[] utf8(int id);
+
+    /**
+     * Tells the store that no node refers to the id any more; NONE is ignored
+     */
+    void release(int id);
+
+    /**
+     * Estimates the heap held by the store, in the terms of
+     * DictionaryEngine.footprintBytes
+     */
+    long footprintBytes();
+}
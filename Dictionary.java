@@ -1,36 +1,102 @@
+import java.io.IOException;
 import java.lang.String;
-import java.util.ArrayList;
-
-class TrieNode {
-    public String label;
-    public ArrayList<TrieNode> children;
-    public boolean isWordEnd;
-    public String definition;
-
-    public TrieNode(String label) {
-        this.label = label;
-        this.children = new ArrayList<>();
-        this.isWordEnd = false;
-        this.definition = null;
-    }
-}
 
 /**
  * Dictionary class that stores words and associates them with their definitions
  */
-public class Dictionary {
+public class Dictionary implements DictionaryEngine {
     private TrieNode root;
-    private boolean isCompressed;
+    private KeyBuffer keys;
+    private final DefinitionStore definitions;
+    private TrieNode[] stack; // reused by walks over the trie
+    private long liveChars; // characters of the current labels; the rest of the key buffer is dead
+
+    // compress() repacks the key buffer only once it holds more dead characters than this and than live ones
+    private static final int MIN_DEAD_CHARS = 1 << 16;
 
     /**
      * Constructor to initialize the Dictionary
      */
     public Dictionary() {
+        this(new HeapDefinitions());
+    }
+
+    /**
+     * Constructor to initialize a Dictionary that keeps its definitions in the
+     * given store
+     */
+    public Dictionary(DefinitionStore definitions) {
         /*
          * create a base Trie
          */
-        root = new TrieNode("");
-        isCompressed = false;
+        root = new TrieNode(KeyBuffer.EMPTY, 0, 0);
+        keys = new KeyBuffer();
+        stack = new TrieNode[16];
+        this.definitions = definitions;
+    }
+
+    Dictionary(TrieNode root, KeyBuffer keys, DefinitionStore definitions) {
+        this.root = root;
+        this.keys = keys;
+        this.stack = new TrieNode[16];
+        this.definitions = definitions;
+        int depth = push(0, root);
+        while (depth > 0) {
+            TrieNode node = stack[--depth];
+            stack[depth] = null;
+            liveChars += node.len;
+            for (TrieNode child : node.children) {
+                depth = push(depth, child);
+            }
+        }
+    }
+
+    TrieNode root() {
+        return root;
+    }
+
+    DefinitionStore definitions() {
+        return definitions;
+    }
+
+    /**
+     * Saves the trie as a checksummed binary snapshot, see TrieSnapshot
+     *
+     * @param path The file to write; it is replaced only once the snapshot is
+     *             complete
+     * @throws IOException If the snapshot could not be written
+     */
+    public void save(String path) throws IOException {
+        TrieSnapshot.save(root, definitions, path);
+    }
+
+    /**
+     * Loads a dictionary from a snapshot written by save. The result behaves
+     * exactly like the saved dictionary, adds and removes included.
+     *
+     * @param path The snapshot file
+     * @return The loaded dictionary
+     * @throws IOException If the file cannot be read or is not an intact
+     *                     snapshot
+     */
+    public static Dictionary load(String path) throws IOException {
+        return load(path, new HeapDefinitions());
+    }
+
+    /**
+     * Loads a dictionary from a snapshot written by save, putting its
+     * definitions into the given store, such as a BlobDefinitions, instead of
+     * on the heap
+     *
+     * @param path        The snapshot file
+     * @param definitions An empty store for the definitions
+     * @return The loaded dictionary
+     * @throws IOException If the file cannot be read or is not an intact
+     *                     snapshot
+     */
+    public static Dictionary load(String path, DefinitionStore definitions) throws IOException {
+        KeyBuffer keys = new KeyBuffer();
+        return new Dictionary(TrieSnapshot.load(path, keys, definitions), keys, definitions);
     }
 
     /**
@@ -40,62 +106,72 @@ public class Dictionary {
      *
      * @param word       The word we want to add to our dictionary
      * @param definition The definition we want to associate with the word
+     * @throws IllegalArgumentException If the word holds a character outside
+     *                                  a to z
      */
     public void add(String word, String definition) {
         /*
          * Traverse the Trie until the characters aren't present, then add a new chain
          * of the remaining characters
          */
-        if (isCompressed)
-            return;
+        DictionaryEngine.checkWord(word);
 
+        // only a new word changes the counts along its path; a redefinition does not
+        boolean isNew = find(word) == null;
         TrieNode curr = root;
         int idx = 0;
+        curr.dirty = true;
+        if (isNew)
+            curr.count++;
 
         while (idx < word.length()) {
-            boolean found = false;
-            for (TrieNode child : curr.children) {
-                String label = child.label;
-                int len = Math.min(label.length(), word.length() - idx);
-
-                int match = 0;
-                while (match < len && label.charAt(match) == word.charAt(idx + match)) {
-                    match++;
-                }
+            TrieNode child = curr.child(word.charAt(idx));
+            if (child == null) {
+                TrieNode newNode = new TrieNode(KeyBuffer.EMPTY, 0, 0);
+                keys.append(newNode, word, idx, word.length());
+                liveChars += newNode.len;
+                newNode.isWordEnd = true;
+                newNode.defId = definitions.put(definition);
+                newNode.count = 1;
+                curr.addChild(newNode);
+                return;
+            }
 
-                if (match > 0) {
-                    if (match < label.length()) {
-                        // Split the child
-                        TrieNode split = new TrieNode(label.substring(match));
-                        split.children = child.children;
-                        split.isWordEnd = child.isWordEnd;
-                        split.definition = child.definition;
-
-                        child.label = label.substring(0, match);
-                        child.children = new ArrayList<>();
-                        child.children.add(split);
-                        child.isWordEnd = false;
-                        child.definition = null;
-                    }
-
-                    curr = child;
-                    idx += match;
-                    found = true;
-                    break;
-                }
+            int len = Math.min(child.len, word.length() - idx);
+
+            // the first character is known to match
+            int match = 1;
+            while (match < len && child.src[child.off + match] == word.charAt(idx + match)) {
+                match++;
             }
 
-            if (!found) {
-                TrieNode newNode = new TrieNode(word.substring(idx));
-                newNode.isWordEnd = true;
-                newNode.definition = definition;
-                curr.children.add(newNode);
-                return;
+            if (match < child.len) {
+                // Split the child; both halves stay views of the same characters
+                TrieNode split = new TrieNode(child.src, child.off + match, child.len - match);
+                split.bitmap = child.bitmap;
+                split.children = child.children;
+                split.isWordEnd = child.isWordEnd;
+                split.defId = child.defId;
+                split.count = child.count;
+
+                child.len = match;
+                child.bitmap = 0;
+                child.children = TrieNode.NO_CHILDREN;
+                child.addChild(split);
+                child.isWordEnd = false;
+                child.defId = DefinitionStore.NONE;
             }
+
+            curr = child;
+            idx += match;
+            curr.dirty = true;
+            if (isNew)
+                curr.count++;
         }
 
         curr.isWordEnd = true;
-        curr.definition = definition;
+        definitions.release(curr.defId);
+        curr.defId = definitions.put(definition);
     }
 
     /**
@@ -107,34 +183,52 @@ public class Dictionary {
         /*
          * traverse the trie down the word until there are no children
          */
-        if (isCompressed)
+        if (find(word) == null)
             return;
-        removeHelper(root, word, 0);
+        removeHelper(word);
     }
 
-    private boolean removeHelper(TrieNode node, String word, int idx) {
-        if (idx == word.length()) {
-            if (!node.isWordEnd)
-                return false;
-            node.isWordEnd = false;
-            node.definition = null;
-            return node.children.isEmpty();
+    /**
+     * Unmarks a word known to be present, then unlinks the nodes left without
+     * words from the bottom up. The path is kept on the reusable stack rather
+     * than the call stack, so the depth of the trie is not limited by -Xss.
+     * Finally the lowest node left on the path is merged with its child if it
+     * is now a plain link of a chain, so the trie stays path-compressed.
+     */
+    private void removeHelper(String word) {
+        // the word is known to be present, so every node on its path loses one word
+        TrieNode node = root;
+        int idx = 0;
+        int depth = 0;
+        node.count--;
+        node.dirty = true;
+        while (idx < word.length()) {
+            depth = push(depth, node);
+            node = node.child(word.charAt(idx));
+            idx += node.len;
+            node.count--;
+            node.dirty = true;
         }
+        node.isWordEnd = false;
+        definitions.release(node.defId);
+        node.defId = DefinitionStore.NONE;
 
-        for (int i = 0; i < node.children.size(); i++) {
-            TrieNode child = node.children.get(i);
-            String label = child.label;
-            if (word.startsWith(label, idx)) {
-                boolean shouldRemove = removeHelper(child, word, idx + label.length());
-                if (shouldRemove) {
-                    node.children.remove(i);
-                    return !node.isWordEnd && node.children.isEmpty();
-                }
-                return false;
+        boolean unlinking = true;
+        while (depth > 0) {
+            TrieNode parent = stack[--depth];
+            stack[depth] = null;
+            if (unlinking && !node.isWordEnd && node.children.length == 0) {
+                parent.removeChild(node.firstChar());
+                liveChars -= node.len;
+                node = parent;
+            } else {
+                unlinking = false; // nothing more to unlink, just clear the stack
             }
         }
 
-        return false;
+        // everything below was already compressed, so at most this one merge is due
+        if (node != root)
+            compressNode(node);
     }
 
     /**
@@ -149,25 +243,30 @@ public class Dictionary {
          * traverse the trie down the word. Once done, there must be a child '$' that
          * points to the definition
          */
+        TrieNode node = find(word);
+        return node != null ? definitions.get(node.defId) : null;
+    }
+
+    /**
+     * Finds the node at which the word ends
+     * Returns null if the word is not in the dictionary
+     *
+     * @param word The word we want to find
+     * @return The node marked as the end of the word, or null if not found
+     */
+    private TrieNode find(String word) {
         TrieNode curr = root;
         int idx = 0;
 
         while (idx < word.length()) {
-            boolean found = false;
-            for (TrieNode child : curr.children) {
-                String label = child.label;
-                if (word.startsWith(label, idx)) {
-                    idx += label.length();
-                    curr = child;
-                    found = true;
-                    break;
-                }
-            }
-            if (!found)
+            TrieNode child = curr.child(word.charAt(idx));
+            if (child == null || !child.occursIn(word, idx))
                 return null;
+            idx += child.len;
+            curr = child;
         }
 
-        return curr.isWordEnd ? curr.definition : null;
+        return curr.isWordEnd ? curr : null;
     }
 
     /**
@@ -175,6 +274,8 @@ public class Dictionary {
      * store the word
      * in a compressed trie consisting of all words in the dictionary
      * Returns null if the word is not in the dictionary
+     * The trie is kept compressed by add and remove, so this can be called at
+     * any time, not only after compress()
      *
      * @param word The word we want the sequence for
      * @return The sequence representation, or null if word not found
@@ -184,28 +285,19 @@ public class Dictionary {
          * traverse the trie, adding the characters to a string. When there is more than
          * one child, add "-"
          */
-        if (!isCompressed)
-            return null;
         TrieNode curr = root;
         int idx = 0;
         StringBuilder sb = new StringBuilder();
 
         while (idx < word.length()) {
-            boolean found = false;
-            for (TrieNode child : curr.children) {
-                String label = child.label;
-                if (word.startsWith(label, idx)) {
-                    if (sb.length() > 0)
-                        sb.append("-");
-                    sb.append(label);
-                    idx += label.length();
-                    curr = child;
-                    found = true;
-                    break;
-                }
-            }
-            if (!found)
+            TrieNode child = curr.child(word.charAt(idx));
+            if (child == null || !child.occursIn(word, idx))
                 return null;
+            if (sb.length() > 0)
+                sb.append("-");
+            sb.append(child.src, child.off, child.len);
+            idx += child.len;
+            curr = child;
         }
 
         return curr.isWordEnd ? sb.toString() : null;
@@ -219,36 +311,24 @@ public class Dictionary {
      */
     public int countPrefix(String prefix) {
         /*
-         * traverses down the prefix then counts all children from that point on
+         * traverses down the prefix, then reads the word count kept on the node the
+         * prefix ends in (or ends inside of)
          */
         TrieNode curr = root;
         int idx = 0;
 
         while (idx < prefix.length()) {
-            boolean found = false;
-            for (TrieNode child : curr.children) {
-                String label = child.label;
-                int len = Math.min(label.length(), prefix.length() - idx);
-                if (prefix.substring(idx, idx + len).equals(label.substring(0, len))) {
-                    idx += len;
-                    curr = child;
-                    found = true;
-                    break;
-                }
-            }
-            if (!found)
+            TrieNode child = curr.child(prefix.charAt(idx));
+            if (child == null)
+                return 0;
+            int len = Math.min(child.len, prefix.length() - idx);
+            if (!child.startsWith(prefix, idx, len))
                 return 0;
+            idx += len;
+            curr = child;
         }
 
-        return countWords(curr);
-    }
-
-    private int countWords(TrieNode node) {
-        int count = node.isWordEnd ? 1 : 0;
-        for (TrieNode child : node.children) {
-            count += countWords(child);
-        }
-        return count;
+        return curr.count;
     }
 
     /**
@@ -257,25 +337,129 @@ public class Dictionary {
      */
     public void compress() {
         /*
-         * Traverse the Trie, combining nodes/branches when there is just one child
+         * add never creates a node with a single child and no word end, and remove
+         * merges any it leaves behind, so the nodes are always compressed. What
+         * removes and merges do leave behind are dead characters in the key buffer.
+         * Once those outnumber the live ones, the labels are copied depth-first
+         * into a fresh buffer, which reclaims them and lays out each path's labels
+         * one after another. Until then this is free, so repeated calls cost
+         * nothing. Adds and removes remain allowed afterwards.
          */
-        isCompressed = true;
-        for (int i = 0; i < root.children.size(); i++) {
-            root.children.set(i, compressNode(root.children.get(i)));
+        long dead = keys.allocatedChars() - liveChars;
+        if (dead <= Math.max(liveChars, MIN_DEAD_CHARS))
+            return;
+        KeyBuffer packed = new KeyBuffer();
+        int depth = push(0, root);
+        while (depth > 0) {
+            TrieNode node = stack[--depth];
+            stack[depth] = null;
+            packed.copy(node);
+            // push in reverse so the first child's label follows its parent's
+            for (int i = node.children.length - 1; i >= 0; i--) {
+                depth = push(depth, node.children[i]);
+            }
         }
+        keys = packed;
     }
 
-    private TrieNode compressNode(TrieNode node) {
-        while (node.children.size() == 1 && !node.isWordEnd) {
-            TrieNode child = node.children.get(0);
-            node.label += child.label;
-            node.isWordEnd = child.isWordEnd;
-            node.definition = child.definition;
-            node.children = child.children;
+    /**
+     * Merges the chain of single children below the node into it, if it has one;
+     * used to repair the path after a removal. The chain is measured first so
+     * the merged label is built once per merge: in place when the labels
+     * already follow each other in one chunk, as they do for chains left by
+     * splits, and otherwise by copying the whole merged label into the key
+     * buffer. A merge therefore costs the length of the merged label, and
+     * repeated merges along one path may copy the same characters again;
+     * compress() reclaims the copies they leave behind.
+     */
+    private void compressNode(TrieNode node) {
+        TrieNode last = node;
+        int length = node.len;
+        boolean contiguous = true;
+        while (last.children.length == 1 && !last.isWordEnd) {
+            TrieNode child = last.children[0];
+            contiguous &= child.src == node.src && child.off == node.off + length;
+            length += child.len;
+            last = child;
         }
-        for (int i = 0; i < node.children.size(); i++) {
-            node.children.set(i, compressNode(node.children.get(i)));
+        if (last == node)
+            return;
+
+        if (contiguous)
+            node.len = length;
+        else
+            keys.appendChain(node, length);
+        node.isWordEnd = last.isWordEnd;
+        node.defId = last.defId;
+        node.count = last.count;
+        node.bitmap = last.bitmap;
+        node.children = last.children;
+    }
+
+    private int push(int depth, TrieNode node) {
+        if (depth == stack.length) {
+            TrieNode[] grown = new TrieNode[depth * 2];
+            System.arraycopy(stack, 0, grown, 0, depth);
+            stack = grown;
         }
-        return node;
+        stack[depth] = node;
+        return depth + 1;
     }
-}
\ No newline at end of file
+
+    /**
+     * Hands every stored word and its definition to the visitor in
+     * alphabetical order: a word is visited before the words it prefixes, and
+     * children are walked in character order
+     */
+    public void forEachWord(WordVisitor visitor) {
+        StringBuilder word = new StringBuilder();
+        int[] lengths = new int[stack.length]; // length of the parent's word for each stacked node
+        int depth = push(0, root);
+        while (depth > 0) {
+            TrieNode node = stack[--depth];
+            stack[depth] = null;
+            word.setLength(lengths[depth]);
+            word.append(node.src, node.off, node.len);
+            if (node.isWordEnd)
+                visitor.visit(word.toString(), definitions.get(node.defId));
+            // push in reverse so children come off the stack in character order
+            for (int i = node.children.length - 1; i >= 0; i--) {
+                depth = push(depth, node.children[i]);
+                if (lengths.length < stack.length) {
+                    int[] grown = new int[stack.length];
+                    System.arraycopy(lengths, 0, grown, 0, lengths.length);
+                    lengths = grown;
+                }
+                lengths[depth - 1] = word.length();
+            }
+        }
+    }
+
+    /**
+     * Estimates the heap held by the trie: every node, its label, its child
+     * array, and whatever its definition store keeps on the heap
+     *
+     * @return The estimated number of bytes
+     */
+    public long footprintBytes() {
+        // the key chunks are shared by all labels, so they are counted once here
+        long bytes = keys.allocatedChars() * 2 + DictionaryEngine.ARRAY_HEADER;
+        bytes += DictionaryEngine.arrayBytes(stack.length, DictionaryEngine.REFERENCE);
+        bytes += definitions.footprintBytes();
+        // header, two references, offset, length, bitmap, count, page, definition id and the two flags
+        long nodeBytes = DictionaryEngine.align(DictionaryEngine.OBJECT_HEADER + 2 * DictionaryEngine.REFERENCE + 6 * 4 + 2);
+
+        int depth = push(0, root);
+        while (depth > 0) {
+            TrieNode node = stack[--depth];
+            stack[depth] = null;
+            bytes += nodeBytes;
+            if (node.children.length > 0)
+                bytes += DictionaryEngine.arrayBytes(node.children.length, DictionaryEngine.REFERENCE);
+            for (TrieNode child : node.children) {
+                depth = push(depth, child);
+            }
+        }
+        return bytes;
+    }
+}
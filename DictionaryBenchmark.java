@@ -0,0 +1,286 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Microbenchmarks for every DictionaryEngine operation. This is a small
+ * hand-rolled harness, not JMH: the tree has no build that could pull JMH in.
+ * It borrows the JMH iteration structure: untimed setup per iteration, warmup
+ * iterations that are thrown away, then measured iterations reported as mean
+ * and standard deviation of the time per operation. Results are folded into a
+ * volatile sink so the JIT cannot drop the calls being measured.
+ *
+ * It has none of the other JMH safeguards. Every benchmark runs in the same
+ * JVM, so profile pollution from earlier benchmarks can shift later ones, and
+ * there are no confidence intervals. Treat differences of a few percent as
+ * noise unless they repeat across separate runs.
+ *
+ * Workloads come from the add operations of the corpus files (by default the
+ * two large public test cases), cut to each requested dictionary size. Miss
+ * keys are corpus words that were not loaded, or loaded words with a letter
+ * appended when the corpus runs out.
+ *
+ * Usage: java DictionaryBenchmark [--sizes=1000,10000,...] [--warmup=N]
+ * [--iterations=N] [--engine=trie|arena] [--filter=text] [corpus file ...]
+ */
+public class DictionaryBenchmark {
+    private static final long MIN_ITERATION_NANOS = 100_000_000L;
+    private static final long MAX_ITERATION_WALL_NANOS = 1_000_000_000L;
+
+    static volatile long sink;
+
+    /**
+     * The keys one benchmark size works with
+     */
+    static class Workload {
+        final int size;
+        final String[] words;
+        final String[] definitions;
+        final String[] missWords;
+        final String[] shortPrefixes;
+        final String[] longPrefixes;
+
+        Workload(List<String> corpusWords, List<String> corpusDefinitions, int size) {
+            this.size = size;
+            words = corpusWords.subList(0, size).toArray(new String[0]);
+            definitions = corpusDefinitions.subList(0, size).toArray(new String[0]);
+            missWords = new String[size];
+            shortPrefixes = new String[size];
+            longPrefixes = new String[size];
+            for (int i = 0; i < size; i++) {
+                int spare = size + i;
+                missWords[i] = spare < corpusWords.size() ? corpusWords.get(spare) : words[i] + "q";
+                shortPrefixes[i] = words[i].substring(0, Math.min(2, words[i].length()));
+                longPrefixes[i] = words[i].substring(0, Math.max(1, words[i].length() - 1));
+            }
+        }
+    }
+
+    interface Setup {
+        DictionaryEngine create(Workload workload);
+    }
+
+    interface Pass {
+        long run(DictionaryEngine dictionary, Workload workload);
+    }
+
+    /**
+     * One benchmark: an untimed setup and a timed pass over the workload's keys.
+     * An iteration repeats the pass until enough time has been measured; passes
+     * that change the dictionary get a fresh setup before every repetition.
+     */
+    static class Benchmark {
+        final String name;
+        final Setup setup;
+        final Pass pass;
+        final boolean repeatable;
+        final boolean singleOp;
+
+        Benchmark(String name, Setup setup, Pass pass, boolean repeatable, boolean singleOp) {
+            this.name = name;
+            this.setup = setup;
+            this.pass = pass;
+            this.repeatable = repeatable;
+            this.singleOp = singleOp;
+        }
+    }
+
+    private static String engine = "trie";
+
+    static DictionaryEngine empty(Workload workload) {
+        return Evaluator.createEngine(engine);
+    }
+
+    static DictionaryEngine filled(Workload workload) {
+        DictionaryEngine dictionary = Evaluator.createEngine(engine);
+        for (int i = 0; i < workload.size; i++) {
+            dictionary.add(workload.words[i], workload.definitions[i]);
+        }
+        return dictionary;
+    }
+
+    static DictionaryEngine compressed(Workload workload) {
+        DictionaryEngine dictionary = filled(workload);
+        dictionary.compress();
+        return dictionary;
+    }
+
+    static List<Benchmark> benchmarks() {
+        List<Benchmark> list = new ArrayList<>();
+        list.add(new Benchmark("add", DictionaryBenchmark::empty, (d, w) -> {
+            for (int i = 0; i < w.size; i++) {
+                d.add(w.words[i], w.definitions[i]);
+            }
+            return d.countPrefix("");
+        }, false, false));
+        list.add(new Benchmark("remove", DictionaryBenchmark::filled, (d, w) -> {
+            for (int i = 0; i < w.size; i++) {
+                d.remove(w.words[i]);
+            }
+            return d.countPrefix("");
+        }, false, false));
+        list.add(new Benchmark("compress", DictionaryBenchmark::filled, (d, w) -> {
+            d.compress();
+            return d.countPrefix("");
+        }, false, true));
+
+        String[] states = { "", ".compressed" };
+        Setup[] setups = { DictionaryBenchmark::filled, DictionaryBenchmark::compressed };
+        for (int s = 0; s < states.length; s++) {
+            String state = states[s];
+            Setup setup = setups[s];
+            list.add(new Benchmark("getDefinition.hit" + state, setup, (d, w) -> {
+                long acc = 0;
+                for (String word : w.words) {
+                    acc += d.getDefinition(word).length();
+                }
+                return acc;
+            }, true, false));
+            list.add(new Benchmark("getDefinition.miss" + state, setup, (d, w) -> {
+                long acc = 0;
+                for (String word : w.missWords) {
+                    acc += d.getDefinition(word) == null ? 1 : 0;
+                }
+                return acc;
+            }, true, false));
+            list.add(new Benchmark("countPrefix.short" + state, setup, (d, w) -> {
+                long acc = 0;
+                for (String prefix : w.shortPrefixes) {
+                    acc += d.countPrefix(prefix);
+                }
+                return acc;
+            }, true, false));
+            list.add(new Benchmark("countPrefix.long" + state, setup, (d, w) -> {
+                long acc = 0;
+                for (String prefix : w.longPrefixes) {
+                    acc += d.countPrefix(prefix);
+                }
+                return acc;
+            }, true, false));
+            list.add(new Benchmark("getSequence.hit" + state, setup, (d, w) -> {
+                long acc = 0;
+                for (String word : w.words) {
+                    acc += d.getSequence(word).length();
+                }
+                return acc;
+            }, true, false));
+            list.add(new Benchmark("getSequence.miss" + state, setup, (d, w) -> {
+                long acc = 0;
+                for (String word : w.missWords) {
+                    acc += d.getSequence(word) == null ? 1 : 0;
+                }
+                return acc;
+            }, true, false));
+        }
+        return list;
+    }
+
+    /**
+     * Runs one iteration and gives its time per operation in nanoseconds
+     */
+    static double iteration(Benchmark benchmark, Workload workload) {
+        DictionaryEngine dictionary = null;
+        long ops = 0;
+        long elapsed = 0;
+        long wallStart = System.nanoTime();
+        do {
+            if (dictionary == null || !benchmark.repeatable)
+                dictionary = benchmark.setup.create(workload);
+            long start = System.nanoTime();
+            sink += benchmark.pass.run(dictionary, workload);
+            elapsed += System.nanoTime() - start;
+            ops += benchmark.singleOp ? 1 : workload.size;
+            // setups can dwarf a cheap pass, so also bound the iteration's wall time
+        } while (elapsed < MIN_ITERATION_NANOS && System.nanoTime() - wallStart < MAX_ITERATION_WALL_NANOS);
+        return (double) elapsed / ops;
+    }
+
+    static void run(Benchmark benchmark, Workload workload, int warmup, int iterations) {
+        for (int i = 0; i < warmup; i++) {
+            iteration(benchmark, workload);
+        }
+        double[] samples = new double[iterations];
+        double sum = 0;
+        for (int i = 0; i < iterations; i++) {
+            samples[i] = iteration(benchmark, workload);
+            sum += samples[i];
+        }
+        double mean = sum / iterations;
+        double squares = 0;
+        for (double sample : samples) {
+            squares += (sample - mean) * (sample - mean);
+        }
+        double stddev = iterations > 1 ? Math.sqrt(squares / (iterations - 1)) : 0;
+        System.out.println(String.format("| %-30s | %8d | %14.1f | %10.1f | %14.0f |", benchmark.name, workload.size,
+                mean, stddev, 1e9 / mean));
+    }
+
+    /**
+     * Collects the distinct words of the add operations of the corpus files, in
+     * file order, with the definition they were first added with
+     */
+    static void loadCorpus(List<String> paths, List<String> words, List<String> definitions) {
+        Set<String> seen = new HashSet<>();
+        for (String path : paths) {
+            TestCase testCase = new TestCase(path);
+            for (Operation op : testCase.operations) {
+                if (op.type == OperationType.ADD && seen.add(op.word)) {
+                    words.add(op.word);
+                    definitions.add(op.definition);
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = { 1000, 10000, 30000 };
+        int warmup = 5;
+        int iterations = 10;
+        String filter = "";
+        List<String> paths = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.startsWith("--sizes=")) {
+                String[] parts = arg.substring("--sizes=".length()).split(",");
+                sizes = new int[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    sizes[i] = Integer.parseInt(parts[i]);
+                }
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(arg.substring("--warmup=".length()));
+            } else if (arg.startsWith("--iterations=")) {
+                iterations = Integer.parseInt(arg.substring("--iterations=".length()));
+            } else if (arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length());
+            } else if (arg.startsWith("--filter=")) {
+                filter = arg.substring("--filter=".length());
+            } else {
+                paths.add(arg);
+            }
+        }
+        if (paths.isEmpty()) {
+            paths.add("tests/tc_19_large_no_compression.txt");
+            paths.add("tests/tc_20_large_compression.txt");
+        }
+
+        List<String> words = new ArrayList<>();
+        List<String> definitions = new ArrayList<>();
+        loadCorpus(paths, words, definitions);
+        System.out.println("Corpus: " + words.size() + " distinct words from " + paths + ", engine " + engine);
+        System.out.println(String.format("| %-30s | %8s | %14s | %10s | %14s |", "benchmark", "size", "ns/op",
+                "stddev", "ops/s"));
+
+        for (int size : sizes) {
+            if (size > words.size()) {
+                System.out.println("Skipping size " + size + ": the corpus only has " + words.size() + " words");
+                continue;
+            }
+            Workload workload = new Workload(words, definitions, size);
+            for (Benchmark benchmark : benchmarks()) {
+                if (benchmark.name.contains(filter))
+                    run(benchmark, workload, warmup, iterations);
+            }
+        }
+    }
+}
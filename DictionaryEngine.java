@@ -0,0 +1,95 @@
+/**
+ * The operations shared by every dictionary backend, so that the Evaluator and
+ * the tools around it can run against any of them
+ *
+ * Words are made of the lower-case letters a to z, as the trie indexes
+ * children by them and snapshots store one byte per character. Every backend
+ * rejects a word with any other character in add, through checkWord; queries
+ * for such words simply find nothing.
+ */
+interface DictionaryEngine {
+    /**
+     * Stores the word with its definition, replacing any earlier definition
+     *
+     * @throws IllegalArgumentException If the word holds a character outside
+     *                                  a to z
+     */
+    void add(String word, String definition);
+
+    void remove(String word);
+
+    String getDefinition(String word);
+
+    String getSequence(String word);
+
+    int countPrefix(String prefix);
+
+    void compress();
+
+    /**
+     * Receives the stored words one at a time
+     */
+    interface WordVisitor {
+        void visit(String word, String definition);
+    }
+
+    /**
+     * Hands every stored word and its definition to the visitor, in no
+     * particular order; the dictionary must not change during the walk
+     */
+    void forEachWord(WordVisitor visitor);
+
+    /**
+     * Gives an estimate of the heap held by this dictionary, definitions
+     * included, assuming a 64-bit JVM with compressed references
+     *
+     * @return The estimated number of bytes
+     */
+    long footprintBytes();
+
+    /**
+     * Checks that a word to be stored holds only the letters a to z
+     *
+     * @throws IllegalArgumentException If it holds any other character
+     */
+    static void checkWord(String word) {
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (c < 'a' || c > 'z')
+                throw new IllegalArgumentException("Unsupported character '" + c + "' in word: " + word);
+        }
+    }
+
+    /*
+     * Layout constants for the estimates: 12-byte object headers, 16-byte array
+     * headers, 4-byte references, and everything padded to 8 bytes
+     */
+    int OBJECT_HEADER = 12;
+    int ARRAY_HEADER = 16;
+    int REFERENCE = 4;
+
+    static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    static long arrayBytes(int length, int elementSize) {
+        return align(ARRAY_HEADER + (long) length * elementSize);
+    }
+
+    /**
+     * Estimates a compact String: the object itself plus a byte[] holding one
+     * byte per character, or two when any character is outside Latin-1
+     */
+    static long stringBytes(String s) {
+        if (s == null)
+            return 0;
+        int width = 1;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0xFF) {
+                width = 2;
+                break;
+            }
+        }
+        return 24 + arrayBytes(s.length(), width);
+    }
+}
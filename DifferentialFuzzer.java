@@ -0,0 +1,300 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs random operation streams against a dictionary backend and the
+ * ReferenceDictionary oracle side by side, and checks every getDefinition,
+ * countPrefix and getSequence result. Words come from a small alphabet and are
+ * short, and half of them reuse or extend earlier words, so streams are dense
+ * with shared prefixes, splits, merges and updates.
+ *
+ * A failing stream is shrunk by delta debugging: chunks of operations are
+ * dropped for as long as the stream still fails, down to single operations.
+ * The result is written as a test case file, with the oracle's expectations,
+ * that the Evaluator fails on in the same way.
+ *
+ * Finally the same larger stream is timed on both, to report throughput
+ * against the oracle.
+ *
+ * Usage: java DifferentialFuzzer [--engine=trie|arena] [--traces=N] [--ops=N]
+ * [--alphabet=abcd] [--max-length=N] [--seed=N] [--throughput-ops=N]
+ * [--repro=path]
+ */
+public class DifferentialFuzzer {
+    private String engine = "trie";
+    private int traces = 2000;
+    private int ops = 300;
+    private String alphabet = "abcd";
+    private int maxLength = 8;
+    private long seed = 1;
+    private int throughputOps = 500_000;
+    private String repro = "fuzz_repro.txt";
+
+    /**
+     * Builds a random stream of operations; expectations are left empty, as
+     * results are compared between the two dictionaries
+     */
+    List<Operation> randomTrace(Random random, int length) {
+        List<Operation> trace = new ArrayList<>(length);
+        List<String> seen = new ArrayList<>();
+        for (int i = 0; i < length; i++) {
+            String word = randomWord(random, seen);
+            int pick = random.nextInt(100);
+            if (pick < 35)
+                trace.add(new Operation(OperationType.ADD, word, "d" + i, null));
+            else if (pick < 50)
+                trace.add(new Operation(OperationType.REMOVE, word, null, null));
+            else if (pick < 65)
+                trace.add(new Operation(OperationType.GET_DEF, word, null, null));
+            else if (pick < 80)
+                trace.add(new Operation(word.substring(0, 1 + random.nextInt(word.length())), 0));
+            else if (pick < 97)
+                trace.add(new Operation(OperationType.GET_SEQ, word, null, null));
+            else
+                trace.add(new Operation(OperationType.COMPRESS, null, null, null));
+        }
+        return trace;
+    }
+
+    private String randomWord(Random random, List<String> seen) {
+        if (!seen.isEmpty() && random.nextBoolean()) {
+            String word = seen.get(random.nextInt(seen.size()));
+            int pick = random.nextInt(3);
+            if (pick == 0)
+                return word;
+            if (pick == 1 && word.length() > 1)
+                return word.substring(0, 1 + random.nextInt(word.length() - 1));
+            if (word.length() < maxLength)
+                return word + alphabet.charAt(random.nextInt(alphabet.length()));
+        }
+        int length = 1 + random.nextInt(maxLength);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        String word = sb.toString();
+        seen.add(word);
+        return word;
+    }
+
+    /**
+     * Runs one operation and gives its result as the test case format would
+     * write it, or null for operations without a result
+     */
+    static String apply(DictionaryEngine dictionary, Operation op) {
+        switch (op.type) {
+            case OperationType.ADD:
+                dictionary.add(op.word, op.definition);
+                return null;
+            case OperationType.REMOVE:
+                dictionary.remove(op.word);
+                return null;
+            case OperationType.GET_DEF:
+                return String.valueOf(dictionary.getDefinition(op.word));
+            case OperationType.COUNT:
+                return String.valueOf(dictionary.countPrefix(op.word));
+            case OperationType.GET_SEQ:
+                return String.valueOf(dictionary.getSequence(op.word));
+            case OperationType.COMPRESS:
+                dictionary.compress();
+                return null;
+            default:
+                throw new IllegalArgumentException("Invalid operation type: " + op.type);
+        }
+    }
+
+    /**
+     * Runs the trace on a fresh backend and a fresh oracle
+     *
+     * @return A description of the first difference, or null if there is none
+     */
+    String firstDifference(List<Operation> trace) {
+        DictionaryEngine dictionary = Evaluator.createEngine(engine);
+        DictionaryEngine oracle = Evaluator.createEngine("reference");
+        for (int i = 0; i < trace.size(); i++) {
+            Operation op = trace.get(i);
+            String expected = apply(oracle, op);
+            String actual;
+            try {
+                actual = apply(dictionary, op);
+            } catch (RuntimeException e) {
+                return "operation " + i + " " + op + " threw " + e;
+            }
+            if (expected != null && !expected.equals(actual))
+                return "operation " + i + " " + op + ": expected " + expected + " but got " + actual;
+        }
+        // the word count covers every word, including ones no query asked about
+        int expectedWords = oracle.countPrefix("");
+        int actualWords = dictionary.countPrefix("");
+        if (expectedWords != actualWords)
+            return "after the trace: expected " + expectedWords + " words but got " + actualWords;
+        return null;
+    }
+
+    /**
+     * Shrinks a failing trace by delta debugging, dropping chunks of
+     * operations while the trace keeps failing
+     */
+    List<Operation> shrink(List<Operation> trace) {
+        int chunks = 2;
+        while (trace.size() >= 2) {
+            int chunk = (trace.size() + chunks - 1) / chunks;
+            boolean reduced = false;
+            for (int start = 0; start < trace.size(); start += chunk) {
+                List<Operation> candidate = new ArrayList<>(trace.subList(0, start));
+                candidate.addAll(trace.subList(Math.min(trace.size(), start + chunk), trace.size()));
+                if (firstDifference(candidate) != null) {
+                    trace = candidate;
+                    chunks = Math.max(chunks - 1, 2);
+                    reduced = true;
+                    break;
+                }
+            }
+            if (!reduced) {
+                if (chunks >= trace.size())
+                    break;
+                chunks = Math.min(trace.size(), chunks * 2);
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Writes a trace as a test case file, with the oracle's results as the
+     * expectations
+     */
+    static void writeTrace(List<Operation> trace, String path) throws IOException {
+        DictionaryEngine oracle = Evaluator.createEngine("reference");
+        try (Writer out = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8))) {
+            out.write(trace.size() + "\n");
+            for (Operation op : trace) {
+                String result = apply(oracle, op);
+                switch (op.type) {
+                    case OperationType.ADD:
+                        out.write("1 " + op.word + " " + op.definition + "\n");
+                        break;
+                    case OperationType.REMOVE:
+                        out.write("2 " + op.word + "\n");
+                        break;
+                    case OperationType.COMPRESS:
+                        out.write("5\n");
+                        break;
+                    default:
+                        out.write(op.type + " " + op.word + " " + result + "\n");
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Times the trace on a fresh dictionary, in nanoseconds
+     */
+    static long time(DictionaryEngine dictionary, List<Operation> trace) {
+        long start = System.nanoTime();
+        long acc = 0;
+        for (Operation op : trace) {
+            String result = apply(dictionary, op);
+            if (result != null)
+                acc += result.length();
+        }
+        long elapsed = System.nanoTime() - start;
+        DictionaryBenchmark.sink += acc;
+        return elapsed;
+    }
+
+    /**
+     * Fuzzes until the trace budget is spent or a difference is found
+     *
+     * @return Whether every trace matched the oracle
+     */
+    boolean fuzz() throws IOException {
+        long operations = 0;
+        long start = System.nanoTime();
+        for (int t = 0; t < traces; t++) {
+            Random random = new Random(seed + t);
+            List<Operation> trace = randomTrace(random, 1 + random.nextInt(ops));
+            operations += trace.size();
+            String difference = firstDifference(trace);
+            if (difference == null)
+                continue;
+
+            System.out.println("Trace " + t + " (seed " + (seed + t) + ") differs at " + difference);
+            List<Operation> shrunk = shrink(trace);
+            writeTrace(shrunk, repro);
+            System.out.println("Shrunk from " + trace.size() + " to " + shrunk.size() + " operations, written to "
+                    + repro + ":");
+            for (Operation op : shrunk) {
+                System.out.println("  " + op);
+            }
+            System.out.println("  " + firstDifference(shrunk));
+            return false;
+        }
+        System.out.println(String.format("%d traces, %d operations against %s: no differences (%.1f s)", traces,
+                operations, engine, (System.nanoTime() - start) / 1e9));
+        return true;
+    }
+
+    /**
+     * Times one long random stream on the backend and on the oracle, best of a
+     * few rounds each so the JIT has compiled both
+     */
+    void throughput() {
+        Random random = new Random(seed);
+        // longer words than the fuzzing traces, so the stream fills a realistically sized dictionary
+        int fuzzLength = maxLength;
+        maxLength = Math.max(maxLength, 12);
+        List<Operation> trace = randomTrace(random, throughputOps);
+        maxLength = fuzzLength;
+
+        long engineBest = Long.MAX_VALUE;
+        long oracleBest = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            engineBest = Math.min(engineBest, time(Evaluator.createEngine(engine), trace));
+            oracleBest = Math.min(oracleBest, time(Evaluator.createEngine("reference"), trace));
+        }
+        double engineRate = trace.size() * 1e9 / engineBest;
+        double oracleRate = trace.size() * 1e9 / oracleBest;
+        System.out.println(String.format("Throughput on %d operations: %s %.0f ops/s, reference oracle %.0f ops/s, %.2fx",
+                trace.size(), engine, engineRate, oracleRate, engineRate / oracleRate));
+    }
+
+    public static void main(String[] args) throws IOException {
+        DifferentialFuzzer fuzzer = new DifferentialFuzzer();
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--engine=")) {
+                fuzzer.engine = value;
+            } else if (arg.startsWith("--traces=")) {
+                fuzzer.traces = Integer.parseInt(value);
+            } else if (arg.startsWith("--ops=")) {
+                fuzzer.ops = Integer.parseInt(value);
+            } else if (arg.startsWith("--alphabet=")) {
+                fuzzer.alphabet = value;
+            } else if (arg.startsWith("--max-length=")) {
+                fuzzer.maxLength = Integer.parseInt(value);
+            } else if (arg.startsWith("--seed=")) {
+                fuzzer.seed = Long.parseLong(value);
+            } else if (arg.startsWith("--throughput-ops=")) {
+                fuzzer.throughputOps = Integer.parseInt(value);
+            } else if (arg.startsWith("--repro=")) {
+                fuzzer.repro = value;
+            } else {
+                System.out.println("Unknown option: " + arg);
+                return;
+            }
+        }
+        if (!fuzzer.fuzz())
+            System.exit(1);
+        if (fuzzer.throughputOps > 0)
+            fuzzer.throughput();
+    }
+}
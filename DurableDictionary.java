@@ -0,0 +1,576 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * A Dictionary whose adds and removes survive a crash. Every mutation is
+ * appended to a write-ahead log and a call returns only once its record is on
+ * disk. Records from concurrent callers are forced together: a flusher thread
+ * forces the log once the given number of records is waiting, or once the
+ * oldest of them has waited the given delay, so many writers share one fsync.
+ *
+ * On opening, the trie is recovered from the last full dump, if there is one,
+ * and the log is replayed on top of it. A checkpoint writes a new dump with
+ * Dictionary.save and then empties the log. A crash between the two replays
+ * operations the dump already holds, which is harmless: the state of each
+ * word is decided by the last operation on it, and that is the same either
+ * way.
+ *
+ * The dump is base.snapshot and the log is base.wal. Calls are serialized on
+ * this object; only the wait for the disk happens outside it.
+ */
+public class DurableDictionary implements DictionaryEngine, AutoCloseable {
+    private final String base;
+    private final long checkpointEvery;
+    private final Dictionary dictionary;
+    private final WriteAheadLog log;
+    private long sinceCheckpoint;
+
+    /**
+     * Opens the dictionary stored under base, recovering whatever it held
+     *
+     * @param base            The path the dump and the log are named after
+     * @param batchSize       How many records wait before the log is forced
+     * @param maxDelayMicros  How long a record waits at most before the log is
+     *                        forced anyway
+     * @param checkpointEvery How many mutations pass between automatic
+     *                        checkpoints, or 0 for none
+     * @throws IOException If the dump or the log cannot be read or opened
+     */
+    public DurableDictionary(String base, int batchSize, long maxDelayMicros, long checkpointEvery) throws IOException {
+        this.base = base;
+        this.checkpointEvery = checkpointEvery;
+        File snapshot = new File(base + ".snapshot");
+        Dictionary recovered = snapshot.exists() ? Dictionary.load(snapshot.getPath()) : new Dictionary();
+        log = new WriteAheadLog(base + ".wal", batchSize, TimeUnit.MICROSECONDS.toNanos(maxDelayMicros),
+                (type, word, definition) -> {
+                    if (type == OperationType.ADD)
+                        recovered.add(word, definition);
+                    else
+                        recovered.remove(word);
+                });
+        dictionary = recovered;
+    }
+
+    public void add(String word, String definition) {
+        long sequence;
+        synchronized (this) {
+            // checked before logging, so a word the trie rejects is never logged,
+            // and applied after it, so a failed append leaves the trie unchanged
+            DictionaryEngine.checkWord(word);
+            sequence = log.append(OperationType.ADD, word, definition);
+            dictionary.add(word, definition);
+            countMutation();
+        }
+        log.awaitDurable(sequence);
+    }
+
+    public void remove(String word) {
+        long sequence;
+        synchronized (this) {
+            sequence = log.append(OperationType.REMOVE, word, null);
+            dictionary.remove(word);
+            countMutation();
+        }
+        log.awaitDurable(sequence);
+    }
+
+    public synchronized String getDefinition(String word) {
+        return dictionary.getDefinition(word);
+    }
+
+    public synchronized String getSequence(String word) {
+        return dictionary.getSequence(word);
+    }
+
+    public synchronized int countPrefix(String prefix) {
+        return dictionary.countPrefix(prefix);
+    }
+
+    public synchronized void compress() {
+        dictionary.compress();
+    }
+
+    public synchronized void forEachWord(WordVisitor visitor) {
+        dictionary.forEachWord(visitor);
+    }
+
+    public synchronized long footprintBytes() {
+        return dictionary.footprintBytes();
+    }
+
+    private void countMutation() {
+        if (checkpointEvery > 0 && ++sinceCheckpoint >= checkpointEvery)
+            checkpoint();
+    }
+
+    /**
+     * Writes a full dump of the trie and empties the log. Mutations wait
+     * until it is done.
+     */
+    public synchronized void checkpoint() {
+        log.awaitDurable(log.appended());
+        try {
+            // save forces the renamed dump and its directory, so the log is
+            // emptied only once the dump would survive a crash
+            dictionary.save(base + ".snapshot");
+            log.truncate();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Checkpoint of " + base + " failed", e);
+        }
+        sinceCheckpoint = 0;
+    }
+
+    /**
+     * Gives the number of log records replayed when the dictionary was opened
+     */
+    public long replayed() {
+        return log.replayed();
+    }
+
+    /**
+     * Gives the number of times the log has been forced to disk
+     */
+    public long forces() {
+        return log.forces();
+    }
+
+    /**
+     * Forces whatever is still waiting and closes the log
+     *
+     * @throws IOException If a write or force failed
+     */
+    public void close() throws IOException {
+        log.close();
+    }
+
+    /**
+     * Measures add and remove throughput with concurrent writers at several
+     * commit batch sizes, then reopens each dictionary and checks that
+     * recovery gives back exactly the words it held, and that a torn last
+     * record is dropped without losing the records written after it.
+     *
+     * Usage: java DurableDictionary [--threads=N] [--ops=N] [--batches=1,8,...]
+     * [--delay=micros] [--checkpoint=N] [--dir=path] [corpus file ...]
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = 64;
+        int ops = 20_000;
+        int[] batches = { 1, 4, 16, 64 };
+        long delay = 1000;
+        long checkpoint = 0;
+        String dir = System.getProperty("java.io.tmpdir");
+        List<String> corpus = new ArrayList<>();
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(value);
+            } else if (arg.startsWith("--ops=")) {
+                ops = Integer.parseInt(value);
+            } else if (arg.startsWith("--batches=")) {
+                String[] parts = value.split(",");
+                batches = new int[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    batches[i] = Integer.parseInt(parts[i]);
+                }
+            } else if (arg.startsWith("--delay=")) {
+                delay = Long.parseLong(value);
+            } else if (arg.startsWith("--checkpoint=")) {
+                checkpoint = Long.parseLong(value);
+            } else if (arg.startsWith("--dir=")) {
+                dir = value;
+            } else {
+                corpus.add(arg);
+            }
+        }
+        if (corpus.isEmpty())
+            corpus.add("tests/tc_19_large_no_compression.txt");
+
+        List<String> words = new ArrayList<>();
+        List<String> definitions = new ArrayList<>();
+        SnapshotBenchmark.parse(corpus, words, definitions);
+
+        System.out.println(String.format("%d writers, %d mutations, forced after %d us at most", threads, ops, delay));
+        System.out.println(String.format("| %8s | %12s | %10s | %14s | %12s |", "batch", "ops/s", "forces", "records/force",
+                "recovery"));
+        for (int batch : batches) {
+            String base = new File(dir, "durable-" + batch).getPath();
+            Files.deleteIfExists(Paths.get(base + ".snapshot"));
+            Files.deleteIfExists(Paths.get(base + ".wal"));
+
+            DurableDictionary dictionary = new DurableDictionary(base, batch, delay, checkpoint);
+            Thread[] writers = new Thread[threads];
+            int perThread = ops / threads;
+            for (int t = 0; t < threads; t++) {
+                int first = t * perThread;
+                writers[t] = new Thread(() -> {
+                    for (int i = first; i < first + perThread; i++) {
+                        int w = i % words.size();
+                        // every eighth mutation removes a word added a few mutations earlier
+                        if (i % 8 == 7)
+                            dictionary.remove(words.get((i - 3) % words.size()));
+                        else
+                            dictionary.add(words.get(w), definitions.get(w));
+                    }
+                });
+            }
+            long start = System.nanoTime();
+            for (Thread writer : writers) {
+                writer.start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            long elapsed = System.nanoTime() - start;
+            dictionary.close();
+            long forces = dictionary.forces();
+
+            long recoverStart = System.nanoTime();
+            DurableDictionary recovered = new DurableDictionary(base, batch, delay, 0);
+            long recovery = System.nanoTime() - recoverStart;
+            List<String> expected = new ArrayList<>();
+            dictionary.forEachWord((word, definition) -> expected.add(word + " " + definition));
+            List<String> actual = new ArrayList<>();
+            recovered.forEachWord((word, definition) -> actual.add(word + " " + definition));
+            recovered.close();
+            if (!expected.equals(actual))
+                throw new IllegalStateException("recovery of " + base + " lost or invented words");
+            checkTornTail(base, batch, delay, recovered.replayed());
+
+            long done = (long) perThread * threads;
+            System.out.println(String.format("| %8d | %12.0f | %10d | %14.1f | %9.1f ms |", batch, done / (elapsed / 1e9),
+                    forces, (double) done / Math.max(1, forces), recovery / 1e6));
+        }
+    }
+
+    /**
+     * Cuts the last byte off a log of the given number of records, as a crash
+     * in the middle of a write would, and checks that reopening drops only the
+     * torn record and that a record added afterwards survives the next reopening
+     */
+    private static void checkTornTail(String base, int batch, long delay, long records) throws IOException {
+        if (records == 0)
+            return;
+        try (FileChannel wal = FileChannel.open(Paths.get(base + ".wal"), StandardOpenOption.WRITE)) {
+            wal.truncate(wal.size() - 1);
+        }
+        try (DurableDictionary torn = new DurableDictionary(base, batch, delay, 0)) {
+            if (torn.replayed() != records - 1)
+                throw new IllegalStateException("recovery of torn " + base + " replayed " + torn.replayed()
+                        + " of " + (records - 1) + " whole records");
+            torn.add("torntail", "added after a torn tail");
+        }
+        try (DurableDictionary reopened = new DurableDictionary(base, batch, delay, 0)) {
+            if (reopened.replayed() != records || !"added after a torn tail".equals(reopened.getDefinition("torntail")))
+                throw new IllegalStateException("a record added after the torn tail of " + base + " was lost");
+        }
+    }
+}
+
+/**
+ * An append-only log of dictionary mutations with group commit. All numbers
+ * are big-endian.
+ *
+ * <pre>
+ * header:  int magic ("DWL1"), int version
+ * record:  int payload length, int CRC32C of the payload, payload
+ * payload: byte type (OperationType.ADD or REMOVE), int word length, word,
+ *          int definition length (-1 for none), definition; strings in UTF-8
+ * </pre>
+ *
+ * A record is a mutation that happened once it is complete and its checksum
+ * matches. Replay stops at the first record that is not, which is where a
+ * crash cut the log, and the log is truncated there so later records follow
+ * valid ones.
+ */
+class WriteAheadLog implements AutoCloseable {
+    static final int MAGIC = 0x44574C31;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 8;
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    /**
+     * Receives the logged mutations in order during recovery
+     */
+    interface Replay {
+        void apply(int type, String word, String definition);
+    }
+
+    private final FileChannel channel;
+    private final int batchSize;
+    private final long maxDelayNanos;
+    private final Thread flusher;
+    private final long replayed;
+    private final CRC32C crc = new CRC32C();
+
+    // guarded by this; the flusher swaps the two buffers to write one while the other fills
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+    private ByteBuffer writing = ByteBuffer.allocate(1 << 16);
+    private int pendingRecords;
+    private long firstPendingAt;
+    private long appended; // sequence number of the last appended record
+    private long durable; // sequence number of the last record known to be on disk
+    private long forces;
+    private boolean closed;
+    private IOException failure;
+
+    WriteAheadLog(String path, int batchSize, long maxDelayNanos, Replay replay) throws IOException {
+        this.batchSize = Math.max(1, batchSize);
+        this.maxDelayNanos = maxDelayNanos;
+        channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            replayed = recover(path, replay);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        flusher = new Thread(this::flushAll, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Replays the valid records of the log, or writes the header of a new one,
+     * and leaves the channel positioned where the next record goes
+     *
+     * @return The number of records replayed
+     */
+    private long recover(String path, Replay replay) throws IOException {
+        if (channel.size() < HEADER_BYTES) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            channel.truncate(0);
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+            channel.position(HEADER_BYTES);
+            return 0;
+        }
+        if (channel.size() > Integer.MAX_VALUE)
+            throw new IOException("Write-ahead log too large to replay; checkpoint more often: " + path);
+
+        ByteBuffer log = ByteBuffer.allocate((int) channel.size());
+        while (log.hasRemaining()) {
+            if (channel.read(log, log.position()) < 0)
+                break;
+        }
+        log.flip();
+        if (log.getInt() != MAGIC)
+            throw new IOException("Not a write-ahead log: " + path);
+        int version = log.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported write-ahead log version " + version + ": " + path);
+
+        long records = 0;
+        byte[] bytes = log.array();
+        while (log.remaining() >= RECORD_HEADER_BYTES) {
+            int at = log.position();
+            int length = log.getInt();
+            int checksum = log.getInt();
+            boolean complete = length >= 0 && length <= log.remaining();
+            if (complete) {
+                crc.reset();
+                crc.update(bytes, log.position(), length);
+            }
+            if (!complete || (int) crc.getValue() != checksum) {
+                // the record starts the torn tail, header included
+                log.position(at);
+                break;
+            }
+            int type = log.get();
+            String word = readString(log);
+            String definition = readString(log);
+            replay.apply(type, word, definition);
+            records++;
+            log.position(at + RECORD_HEADER_BYTES + length);
+        }
+
+        // drop a torn tail so new records follow the last valid one
+        int end = log.position();
+        if (end < channel.size()) {
+            channel.truncate(end);
+            channel.force(true);
+        }
+        channel.position(end);
+        return records;
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0)
+            return null;
+        String s = new String(buf.array(), buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return s;
+    }
+
+    /**
+     * Adds a record to the log. It is on disk once awaitDurable returns for
+     * the sequence number given back.
+     *
+     * @return The sequence number of the record
+     */
+    synchronized long append(int type, String word, String definition) {
+        if (failure != null)
+            throw new UncheckedIOException("Write-ahead log failed", failure);
+        if (closed)
+            throw new IllegalStateException("Write-ahead log is closed");
+        byte[] wordBytes = word.getBytes(StandardCharsets.UTF_8);
+        byte[] definitionBytes = definition == null ? null : definition.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 4 + wordBytes.length + 4 + (definitionBytes == null ? 0 : definitionBytes.length);
+        if (pending.remaining() < RECORD_HEADER_BYTES + length) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position()
+                    + RECORD_HEADER_BYTES + length));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+
+        int at = pending.position();
+        pending.position(at + RECORD_HEADER_BYTES);
+        pending.put((byte) type).putInt(wordBytes.length).put(wordBytes);
+        if (definitionBytes == null)
+            pending.putInt(-1);
+        else
+            pending.putInt(definitionBytes.length).put(definitionBytes);
+        crc.reset();
+        crc.update(pending.array(), at + RECORD_HEADER_BYTES, length);
+        pending.putInt(at, length).putInt(at + 4, (int) crc.getValue());
+
+        if (pendingRecords++ == 0)
+            firstPendingAt = System.nanoTime();
+        if (pendingRecords == 1 || pendingRecords >= batchSize)
+            notifyAll();
+        return ++appended;
+    }
+
+    /**
+     * Waits until the record with the given sequence number is on disk
+     *
+     * @throws UncheckedIOException If writing the log failed
+     */
+    synchronized void awaitDurable(long sequence) {
+        boolean interrupted = false;
+        while (durable < sequence) {
+            if (failure != null)
+                throw new UncheckedIOException("Write-ahead log failed", failure);
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // the mutation is already applied, so it cannot be abandoned
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    synchronized long appended() {
+        return appended;
+    }
+
+    synchronized long forces() {
+        return forces;
+    }
+
+    long replayed() {
+        return replayed;
+    }
+
+    /**
+     * Empties the log; every record must already be on disk, as after
+     * awaitDurable(appended())
+     */
+    synchronized void truncate() throws IOException {
+        if (durable != appended)
+            throw new IllegalStateException("Write-ahead log truncated with records still pending");
+        channel.truncate(HEADER_BYTES);
+        channel.force(true);
+        channel.position(HEADER_BYTES);
+    }
+
+    private void flushAll() {
+        while (true) {
+            long upto;
+            synchronized (this) {
+                try {
+                    while (true) {
+                        if (failure != null)
+                            return;
+                        if (pendingRecords >= batchSize || (closed && pendingRecords > 0))
+                            break;
+                        if (pendingRecords > 0) {
+                            long wait = firstPendingAt + maxDelayNanos - System.nanoTime();
+                            if (wait <= 0)
+                                break;
+                            TimeUnit.NANOSECONDS.timedWait(this, wait);
+                        } else if (closed) {
+                            return;
+                        } else {
+                            wait();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ByteBuffer full = pending;
+                pending = writing;
+                writing = full;
+                upto = appended;
+                pendingRecords = 0;
+            }
+
+            try {
+                writing.flip();
+                while (writing.hasRemaining()) {
+                    channel.write(writing);
+                }
+                channel.force(false);
+                writing.clear();
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                durable = upto;
+                forces++;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Forces the records still waiting, stops the flusher and closes the file
+     *
+     * @throws IOException If a write or force failed
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (failure != null)
+            throw failure;
+    }
+}
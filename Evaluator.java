@@ -1,221 +1,364 @@
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.Scanner;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-class OperationType {
-    public static final int ADD = 1;
-    public static final int REMOVE = 2;
-    public static final int GET_DEF = 3;
-    public static final int COUNT = 4;
-    public static final int COMPRESS = 5;
-    public static final int GET_SEQ = 6;
-}
-
-class Operation {
-    int type;
-    String word;
-    String definition;
-    String expected;
-
-    Operation(int type, String word, String definition, String expected) {
-        this.type = type;
-        this.word = word;
-        this.definition = definition;
-        this.expected = expected;
-    }
-
-    public String toString() {
-        switch (type) {
-            case OperationType.ADD:
-                return "Op:[add " + word + " \"" + definition + "\"]";
-            case OperationType.REMOVE:
-                return "Op:[remove " + word + "]";
-            case OperationType.GET_DEF:
-                return "Op:[getDefinition " + word + "]";
-            case OperationType.GET_SEQ:
-                return "Op:[getSequence " + word + "]";
-            case OperationType.COUNT:
-                return "Op:[countPrefix " + word + "]";
-            case OperationType.COMPRESS:
-                return "Op:[compress]";
-            default:
-                return "Op:[Invalid]";
-        }
-    }
-}
+public class Evaluator {
+    // which DictionaryEngine each test case runs against, chosen with --engine=
+    private static String engine = "trie";
+    // whether test cases are run while they are read instead of loaded first, set by --stream
+    private static boolean streaming = false;
+    // whether per-operation latencies are recorded and reported, set by --latency
+    private static boolean measureLatency = false;
+    // whether time is broken down by phase of the test case, set by --phases
+    private static boolean measurePhases = false;
+    // whether allocation, GC and retained heap are reported, set by --alloc
+    private static boolean measureAllocation = false;
+    // unmeasured and measured runs of each test case, set by --warmup= and --iterations=
+    private static int warmup = 0;
+    private static int iterations = 1;
+    // whether each test case runs in a JVM of its own, set by --fork
+    private static boolean fork = false;
+    private static final List<String> childOptions = new ArrayList<>();
+    // how many test files of a directory run at once, set by --parallel[=N]
+    private static int parallelism = 1;
+    // whether measured runs wait for every other test to stop, set by --isolate
+    private static boolean isolate = false;
+    // untimed work holds the read lock and measured runs the write lock
+    private static final ReadWriteLock timing = new ReentrantReadWriteLock();
 
-class TestCase {
-    Operation[] operations;
+    // where this evaluator reports, so tests run in parallel can buffer their output
+    private final PrintStream out;
+    private DictionaryEngine dictionary;
+    private long streamedBytes;
+    // latency of each operation, indexed by operation type; null when not measuring
+    private LatencyHistogram[] latency;
+    // set only for the accounting run that follows the measured ones
+    private AllocationProfile profile;
 
-    Operation readAdd(Scanner scanner) {
-        try {
-            String word = scanner.next();
-            String definition = scanner.nextLine().trim();
-            return new Operation(OperationType.ADD, word, definition, null);
-        } catch (Exception e) {
-            throw new RuntimeException("Error reading ADD operation: " + e.getMessage());
-        }
-    }
+    // phases of a test case, each a stretch of consecutive operations of one kind
+    private static final int BUILD = 0;
+    private static final int COMPRESS = 1;
+    private static final int QUERY = 2;
+    private static final String[] PHASE_NAMES = { "build", "compress", "query" };
+    // time, operations and stretches of each phase over the measured runs; null when not measuring
+    private long[] phaseNanos;
+    private long[] phaseOps;
+    private long[] phaseStretches;
+    private int phase = -1;
+    private long phaseStart;
 
-    Operation readRemove(Scanner scanner) {
-        try {
-            String word = scanner.next();
-            scanner.nextLine(); // consume the rest of the line
-            return new Operation(OperationType.REMOVE, word, null, null);
-        } catch (Exception e) {
-            throw new RuntimeException("Error reading REMOVE operation: " + e.getMessage());
-        }
+    Evaluator() {
+        this(System.out);
     }
 
-    Operation readGetDefinition(Scanner scanner) {
-        try {
-            String word = scanner.next();
-            String expected = scanner.nextLine().trim();
-            return new Operation(OperationType.GET_DEF, word, null, expected);
-        } catch (Exception e) {
-            throw new RuntimeException("Error reading GET_DEF operation: " + e.getMessage());
+    Evaluator(PrintStream out) {
+        this.out = out;
+        if (measureLatency) {
+            latency = new LatencyHistogram[OperationType.GET_SEQ + 1];
+            for (int type = OperationType.ADD; type <= OperationType.GET_SEQ; type++) {
+                latency[type] = new LatencyHistogram();
+            }
         }
-    }
-
-    Operation readGetSequence(Scanner scanner) {
-        try {
-            String word = scanner.next();
-            String expected = scanner.nextLine().trim();
-            return new Operation(OperationType.GET_SEQ, word, null, expected);
-        } catch (Exception e) {
-            throw new RuntimeException("Error reading GET_SEQ operation: " + e.getMessage());
+        if (measurePhases) {
+            phaseNanos = new long[PHASE_NAMES.length];
+            phaseOps = new long[PHASE_NAMES.length];
+            phaseStretches = new long[PHASE_NAMES.length];
         }
     }
 
-    Operation readCountPrefix(Scanner scanner) {
-        try {
-            String prefix = scanner.next();
-            String expected = scanner.nextLine().trim();
-            return new Operation(OperationType.COUNT, prefix, null, expected);
-        } catch (Exception e) {
-            throw new RuntimeException("Error reading COUNT operation: " + e.getMessage());
+    public boolean runOperations(Operation[] operations) {
+        for (int i = 0; i < operations.length; i++) {
+            if (!runOperation(operations[i], i))
+                return false;
         }
+        return true;
     }
 
-    Operation readCompress(Scanner scanner) {
-        try {
-            scanner.nextLine(); // consume the rest of the line
-            return new Operation(OperationType.COMPRESS, null, null, null);
-        } catch (Exception e) {
-            throw new RuntimeException("Error reading COMPRESS operation: " + e.getMessage());
+    /**
+     * Runs the operations of a source one at a time as they are read, so memory
+     * use does not grow with the length of the test case
+     *
+     * @param source The operations to run
+     * @param numOps The operation count the test case declares
+     * @return Whether every operation succeeded
+     */
+    public boolean runStream(OperationSource source, int numOps) {
+        for (int i = 0; i < numOps; i++) {
+            Operation op;
+            try {
+                op = source.next();
+            } catch (IOException e) {
+                out.println("Test failed at operation " + i + ": " + e.getMessage());
+                return false;
+            }
+            if (op == null) {
+                out.println("Test failed at operation " + i + ": expected " + numOps
+                        + " operations but the input ended");
+                return false;
+            }
+            if (!runOperation(op, i))
+                return false;
         }
+        return true;
     }
 
-    Operation readOperation(Scanner scanner) {
+    /**
+     * Runs one operation, printing why it failed if it did
+     *
+     * @param op The operation to run
+     * @param i  Its index in the test case
+     * @return Whether the operation succeeded
+     */
+    private boolean runOperation(Operation op, int i) {
         try {
-            int type = scanner.nextInt();
-            switch (type) {
+            String result;
+            if (phaseNanos != null)
+                enterPhase(op.type);
+            if (profile != null)
+                profile.beforeOperation(op.type, dictionary);
+            long start = startTimer();
+            switch (op.type) {
                 case OperationType.ADD:
-                    return readAdd(scanner);
+                    dictionary.add(op.word, op.definition);
+                    stopTimer(op.type, start);
+                    break;
                 case OperationType.REMOVE:
-                    return readRemove(scanner);
+                    dictionary.remove(op.word);
+                    stopTimer(op.type, start);
+                    break;
                 case OperationType.GET_DEF:
-                    return readGetDefinition(scanner);
+                    result = dictionary.getDefinition(op.word);
+                    stopTimer(op.type, start);
+                    if (!String.valueOf(result).equals(op.expected)) {
+                        out.println("Test failed at operation " + i + "[" + op.toString() + "]: expected "
+                                + op.expected + " but got " + result);
+                        return false;
+                    }
+                    break;
                 case OperationType.GET_SEQ:
-                    return readGetSequence(scanner);
+                    result = dictionary.getSequence(op.word);
+                    stopTimer(op.type, start);
+                    if (!String.valueOf(result).equals(op.expected)) {
+                        out.println("Test failed at operation " + i + "[" + op.toString() + "]: expected "
+                                + op.expected + " but got " + result);
+                        return false;
+                    }
+                    break;
                 case OperationType.COUNT:
-                    return readCountPrefix(scanner);
+                    int count = dictionary.countPrefix(op.word);
+                    stopTimer(op.type, start);
+                    if (count != op.expectedCount) {
+                        out.println("Test failed at operation " + i + "[" + op.toString() + "]: expected "
+                                + op.expectedCount + " but got " + count);
+                        return false;
+                    }
+                    break;
                 case OperationType.COMPRESS:
-                    return readCompress(scanner);
+                    dictionary.compress();
+                    stopTimer(op.type, start);
+                    break;
                 default:
-                    throw new IllegalArgumentException("Invalid operation type: " + type);
+                    throw new IllegalArgumentException("Invalid operation type: " + op.type);
             }
+            if (profile != null)
+                profile.afterOperation(op.type, dictionary);
+            return true;
         } catch (Exception e) {
-            throw new RuntimeException("Error reading operation: " + e.getMessage());
+            out.println("Test failed at operation " + i + ": " + e.getMessage());
+            return false;
         }
     }
 
-    TestCase(String filepath) {
-        try (Scanner scanner = new Scanner(new File(filepath))) {
-            int numOps = scanner.nextInt();
-            scanner.nextLine(); // consume newline
-            operations = new Operation[numOps];
-            for (int i = 0; i < numOps; i++) {
-                operations[i] = readOperation(scanner);
+    /**
+     * Forgets the latencies and phase times of earlier runs, so warmup runs do
+     * not count towards them
+     */
+    void resetMeasurements() {
+        if (latency != null) {
+            for (LatencyHistogram histogram : latency) {
+                if (histogram != null)
+                    histogram.reset();
             }
-        } catch (FileNotFoundException e) {
-            System.out.println("Testcase file not found: " + filepath);
-            throw new RuntimeException(e);
-        } catch (Exception e) {
-            System.out.println("Error reading testcase file: " + filepath);
-            throw new RuntimeException(e);
+        }
+        if (phaseNanos != null) {
+            Arrays.fill(phaseNanos, 0);
+            Arrays.fill(phaseOps, 0);
+            Arrays.fill(phaseStretches, 0);
         }
     }
 
-    public String toString() {
-        StringBuilder result = new StringBuilder();
-        result.append("Operations[").append(operations.length).append("]:{\n");
-        for (Operation op : operations) {
-            result.append("  ").append(op.toString()).append("\n");
+    private static int phaseOf(int type) {
+        switch (type) {
+            case OperationType.ADD:
+            case OperationType.REMOVE:
+                return BUILD;
+            case OperationType.COMPRESS:
+                return COMPRESS;
+            default:
+                return QUERY;
         }
-        result.append("}\n");
-        return result.toString();
     }
-}
 
-public class Evaluator {
-    private Dictionary dictionary;
+    /**
+     * Counts an operation towards its phase, reading the clock only when the
+     * phase changes
+     */
+    private void enterPhase(int type) {
+        int next = phaseOf(type);
+        phaseOps[next]++;
+        if (next == phase)
+            return;
+        long now = System.nanoTime();
+        if (phase >= 0)
+            phaseNanos[phase] += now - phaseStart;
+        phase = next;
+        phaseStart = now;
+        phaseStretches[next]++;
+    }
 
-    public boolean runOperations(Operation[] operations) {
-        int i = 0;
-        for (Operation op : operations) {
-            try {
-                String result;
-                switch (op.type) {
-                    case OperationType.ADD:
-                        dictionary.add(op.word, op.definition);
-                        break;
-                    case OperationType.REMOVE:
-                        dictionary.remove(op.word);
-                        break;
-                    case OperationType.GET_DEF:
-                        result = dictionary.getDefinition(op.word);
-                        if (!String.valueOf(result).equals(op.expected)) {
-                            System.out.println("Test failed at operation " + i + "[" + op.toString() + "]: expected "
-                                    + op.expected + " but got " + result);
-                            return false;
-                        }
-                        break;
-                    case OperationType.GET_SEQ:
-                        result = dictionary.getSequence(op.word);
-                        if (!String.valueOf(result).equals(op.expected)) {
-                            System.out.println("Test failed at operation " + i + "[" + op.toString() + "]: expected "
-                                    + op.expected + " but got " + result);
-                            return false;
-                        }
-                        break;
-                    case OperationType.COUNT:
-                        int count = dictionary.countPrefix(op.word);
-                        if (!String.valueOf(count).equals(op.expected)) {
-                            System.out.println("Test failed at operation " + i + "[" + op.toString() + "]: expected "
-                                    + op.expected + " but got " + count);
-                            return false;
-                        }
-                        break;
-                    case OperationType.COMPRESS:
-                        dictionary.compress();
-                        break;
-                    default:
-                        throw new IllegalArgumentException("Invalid operation type: " + op.type);
-                }
-                i++;
-            } catch (Exception e) {
-                System.out.println("Test failed at operation " + i + ": " + e.getMessage());
-                return false;
-            }
+    private void endPhase() {
+        if (phaseNanos == null || phase < 0)
+            return;
+        phaseNanos[phase] += System.nanoTime() - phaseStart;
+        phase = -1;
+    }
+
+    /**
+     * Prints a table row per phase with its mean time per run, its operations
+     * per second, and the number of stretches it was split into
+     */
+    void printPhases(int runs) {
+        if (phaseNanos == null || runs == 0)
+            return;
+        for (int p = 0; p < PHASE_NAMES.length; p++) {
+            if (phaseOps[p] == 0)
+                continue;
+            String row = String.format("  %s: %d ops in %d stretches, %.3f Mops/s", PHASE_NAMES[p],
+                    phaseOps[p] / runs, phaseStretches[p] / runs,
+                    phaseNanos[p] == 0 ? 0.0 : phaseOps[p] * 1e3 / phaseNanos[p]);
+            out.println(String.format("| %-60s | %-10s | %-8.2fms |", row, "", phaseNanos[p] / 1e6 / runs));
+        }
+    }
+
+    /**
+     * Runs the test case once more with allocation accounting, keeping it out
+     * of the latencies and phase times of the measured runs
+     */
+    private void runAccounted(String path, TestCase testCase) {
+        LatencyHistogram[] measuredLatency = latency;
+        long[] measuredPhaseNanos = phaseNanos;
+        latency = null;
+        phaseNanos = null;
+        profile = new AllocationProfile();
+        try {
+            runOnce(path, testCase);
+            profile.finish(dictionary);
+        } finally {
+            dictionary = null;
+            profile.release();
+            latency = measuredLatency;
+            phaseNanos = measuredPhaseNanos;
+        }
+    }
+
+    private long startTimer() {
+        return latency != null ? System.nanoTime() : 0;
+    }
+
+    private void stopTimer(int type, long start) {
+        if (latency != null)
+            latency[type].record(System.nanoTime() - start);
+    }
+
+    /**
+     * Prints count, mean, percentiles and maximum latency for every operation
+     * type that was run, in microseconds
+     */
+    void printLatency() {
+        if (latency == null)
+            return;
+        out.println(String.format("| %-15s | %10s | %10s | %10s | %10s | %10s | %10s |", "latency (us)",
+                "count", "mean", "p50", "p99", "p99.9", "max"));
+        for (int type = OperationType.ADD; type <= OperationType.GET_SEQ; type++) {
+            LatencyHistogram histogram = latency[type];
+            if (histogram.count() == 0)
+                continue;
+            out.println(String.format("| %-15s | %10d | %10.3f | %10.3f | %10.3f | %10.3f | %10.3f |",
+                    OperationType.name(type), histogram.count(), histogram.mean() / 1e3,
+                    histogram.percentile(50) / 1e3, histogram.percentile(99) / 1e3,
+                    histogram.percentile(99.9) / 1e3, histogram.max() / 1e3));
+        }
+    }
+
+    /**
+     * Creates an empty dictionary of the named backend: "trie" for Dictionary,
+     * "arena" for ArenaDictionary or "reference" for the ReferenceDictionary
+     * that expected results are computed with
+     */
+    static DictionaryEngine createEngine(String name) {
+        switch (name) {
+            case "trie":
+                return new Dictionary();
+            case "arena":
+                return new ArenaDictionary();
+            case "reference":
+                return new ReferenceDictionary();
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + name);
         }
-        return true;
     }
 
     public boolean runTestCase(TestCase testCase) {
-        dictionary = new Dictionary();
-        return runOperations(testCase.operations);
+        dictionary = createEngine(engine);
+        boolean passed = runOperations(testCase.operations);
+        endPhase();
+        return passed;
+    }
+
+    public boolean runStreamingTestCase(OperationSource source, int numOps) {
+        dictionary = createEngine(engine);
+        boolean passed = runStream(source, numOps);
+        endPhase();
+        return passed;
+    }
+
+    /**
+     * Runs the test case once on a fresh dictionary, from the loaded operations
+     * or, when testCase is null, streamed from the file
+     */
+    private boolean runOnce(String path, TestCase testCase) {
+        if (testCase != null)
+            return runTestCase(testCase);
+        // streamed operations are read on another thread, so they are not charged to the dictionary
+        try (TestCaseReader reader = TestCaseReader.open(path)) {
+            int numOps = reader.readCount();
+            boolean passed;
+            try (ReadAheadSource source = new ReadAheadSource(reader, numOps)) {
+                passed = runStreamingTestCase(source, numOps);
+            }
+            streamedBytes = reader.bytesRead();
+            return passed;
+        } catch (FileNotFoundException e) {
+            out.println("Testcase file not found: " + path);
+            throw new RuntimeException(e);
+        } catch (Exception e) {
+            out.println("Error reading testcase file: " + path);
+            throw new RuntimeException(e);
+        }
     }
 
     public static void main(String[] args) {
@@ -224,23 +367,74 @@ public class Evaluator {
             return;
         }
 
-        for (String path : args) {
-            File file = new File(path);
-            processTestFile(file);
+        boolean child = false;
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                // everything but --fork is passed on to forked JVMs
+                if (arg.equals("--fork"))
+                    fork = true;
+                else if (arg.equals("--child"))
+                    child = true;
+                else
+                    childOptions.add(arg);
+            }
+            if (arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length());
+            } else if (arg.equals("--stream")) {
+                streaming = true;
+            } else if (arg.equals("--latency")) {
+                measureLatency = true;
+            } else if (arg.equals("--phases")) {
+                measurePhases = true;
+            } else if (arg.equals("--alloc")) {
+                measureAllocation = true;
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(arg.substring("--warmup=".length()));
+            } else if (arg.startsWith("--iterations=")) {
+                iterations = Math.max(1, Integer.parseInt(arg.substring("--iterations=".length())));
+            } else if (arg.equals("--parallel")) {
+                parallelism = Runtime.getRuntime().availableProcessors();
+            } else if (arg.startsWith("--parallel=")) {
+                parallelism = Math.max(1, Integer.parseInt(arg.substring("--parallel=".length())));
+            } else if (arg.equals("--isolate")) {
+                isolate = true;
+            } else if (arg.startsWith("--")) {
+                if (!arg.equals("--fork") && !arg.equals("--child"))
+                    System.out.println("Unknown option: " + arg);
+            } else if (child) {
+                // a forked JVM runs exactly the file it was given, without the listing
+                runSingleTest(arg, false, System.out);
+            } else {
+                File file = new File(arg);
+                processTestFile(file);
+            }
         }
     }
 
     private static void processTestFile(File file) {
         System.out.println("Processing file: " + file.getPath());
         if (!file.isDirectory()) {
-            runSingleTest(file.getPath(), true);
+            runSingleTest(file.getPath(), true, System.out);
         } else {
             File[] files = file.listFiles();
             if (files != null) {
                 Arrays.sort(files);
+                List<String> paths = new ArrayList<>();
                 for (File testFile : files) {
-                    if (testFile.isFile() && testFile.getName().endsWith(".txt")) {
-                        runSingleTest(testFile.getPath(), false);
+                    String name = testFile.getName();
+                    if (!testFile.isFile())
+                        continue;
+                    // a compiled test case stands in for the text file it was compiled from
+                    if (name.endsWith(CompiledTestCase.EXTENSION) || (name.endsWith(".txt")
+                            && !new File(CompiledTestCase.compiledPath(testFile.getPath())).isFile())) {
+                        paths.add(testFile.getPath());
+                    }
+                }
+                if (parallelism > 1) {
+                    runParallel(paths);
+                } else {
+                    for (String path : paths) {
+                        runSingleTest(path, false, System.out);
                     }
                 }
             } else {
@@ -249,19 +443,168 @@ public class Evaluator {
         }
     }
 
-    private static void runSingleTest(String path, boolean verbose) {
-        TestCase testCase = new TestCase(path);
-        if (verbose) {
-            System.out.println(testCase.toString());
+    /**
+     * Runs test files on a work-stealing pool, each into a buffer of its own,
+     * and prints the buffers in file order as soon as every earlier one is done,
+     * so the report reads the same as a sequential run
+     */
+    private static void runParallel(List<String> paths) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<ForkJoinTask<String>> tasks = new ArrayList<>();
+            for (String path : paths) {
+                tasks.add(pool.submit(() -> {
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                    try (PrintStream out = new PrintStream(buffer, false, StandardCharsets.UTF_8)) {
+                        runSingleTest(path, false, out);
+                    }
+                    return buffer.toString(StandardCharsets.UTF_8);
+                }));
+            }
+            for (ForkJoinTask<String> task : tasks) {
+                System.out.print(task.join());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs a test case warmup times unmeasured and then iterations times
+     * measured, each on a fresh dictionary, and reports the mean runtime. In
+     * streaming mode every run reads the file again, and the operations are
+     * never all in memory at once, so they are not listed. With --isolate the
+     * measured runs hold the timing lock exclusively, so no other test parses,
+     * warms up or allocates while they are timed.
+     */
+    private static void runSingleTest(String path, boolean verbose, PrintStream out) {
+        if (fork) {
+            runForked(path, out);
+            return;
+        }
+        Evaluator evaluator = new Evaluator(out);
+        TestCase testCase = null;
+        boolean passed = true;
+        lock(timing.readLock());
+        try {
+            if (!streaming) {
+                testCase = new TestCase(path);
+                if (verbose) {
+                    out.println(testCase.toString());
+                }
+            }
+            for (int i = 0; i < warmup && passed; i++) {
+                passed = evaluator.runOnce(path, testCase);
+            }
+        } finally {
+            unlock(timing.readLock());
+        }
+        evaluator.resetMeasurements();
+
+        double[] runtimes = new double[iterations];
+        int runs = 0;
+        long collections = 0;
+        long collectionMillis = 0;
+        lock(timing.writeLock());
+        try {
+            if (measureAllocation) {
+                collections = -AllocationProfile.collectionCount();
+                collectionMillis = -AllocationProfile.collectionMillis();
+            }
+            while (passed && runs < iterations) {
+                long startTime = System.nanoTime();
+                passed = evaluator.runOnce(path, testCase);
+                runtimes[runs++] = (System.nanoTime() - startTime) / 1e6;
+            }
+            if (measureAllocation) {
+                collections += AllocationProfile.collectionCount();
+                collectionMillis += AllocationProfile.collectionMillis();
+                // one more, unmeasured run whose per-operation accounting would distort the timings
+                if (passed)
+                    evaluator.runAccounted(path, testCase);
+            }
+        } finally {
+            unlock(timing.writeLock());
+        }
+
+        double mean = 0;
+        for (int i = 0; i < runs; i++) {
+            mean += runtimes[i] / runs;
+        }
+        double squares = 0;
+        for (int i = 0; i < runs; i++) {
+            squares += (runtimes[i] - mean) * (runtimes[i] - mean);
         }
-        long startTime = System.currentTimeMillis();
-        boolean passed = new Evaluator().runTestCase(testCase);
-        long endTime = System.currentTimeMillis();
-        long runtime = endTime - startTime;
+        double stddev = runs > 1 ? Math.sqrt(squares / (runs - 1)) : 0;
+
         String fileName = new File(path).getName();
         String status = passed ? "PASS" : "FAIL";
-        System.out.println("+" + "-".repeat(62) + "+" + "-".repeat(12) + "+" + "-".repeat(12) + "+");
-        System.out.println(String.format("| %-60s | %-10s | %-8dms |", fileName, status, runtime));
-        System.out.println("+" + "-".repeat(62) + "+" + "-".repeat(12) + "+" + "-".repeat(12) + "+");
+        out.println("+" + "-".repeat(62) + "+" + "-".repeat(12) + "+" + "-".repeat(12) + "+");
+        out.println(String.format("| %-60s | %-10s | %-8dms |", fileName, status, Math.round(mean)));
+        if (testCase != null) {
+            String parsed = String.format("  %s %.1f MB at %.1f MB/s", testCase.compiled ? "loaded" : "parsed",
+                    testCase.bytes / 1e6, testCase.parseMegabytesPerSecond());
+            out.println(String.format("| %-60s | %-10s | %-8dms |", parsed, "", testCase.parseNanos / 1000000));
+        } else {
+            String streamed = String.format("  streamed %.1f MB", evaluator.streamedBytes / 1e6);
+            out.println(String.format("| %-60s | %-10s | %-8s   |", streamed, "", ""));
+        }
+        evaluator.printPhases(runs);
+        if (warmup > 0 || iterations > 1) {
+            String steady = String.format("  %d measured runs after %d warmup, stddev %.2f ms", runs, warmup, stddev);
+            out.println(String.format("| %-60s | %-10s | %-8.2fms |", steady, "", mean));
+        }
+        if (measureAllocation) {
+            String gc = String.format("  %d GCs in measured runs", collections);
+            out.println(String.format("| %-60s | %-10s | %-8dms |", gc, "", collectionMillis));
+        }
+        out.println("+" + "-".repeat(62) + "+" + "-".repeat(12) + "+" + "-".repeat(12) + "+");
+        evaluator.printLatency();
+        if (evaluator.profile != null)
+            evaluator.profile.print(out);
+    }
+
+    private static void lock(Lock lock) {
+        if (isolate)
+            lock.lock();
     }
-}
\ No newline at end of file
+
+    private static void unlock(Lock lock) {
+        if (isolate)
+            lock.unlock();
+    }
+
+    /**
+     * Runs a test case in a JVM of its own, started with this JVM's flags and
+     * classpath, so that profiles gathered on earlier test cases cannot affect
+     * how its code is compiled. The child's output is copied to out; with
+     * --isolate the child holds the timing lock exclusively for its whole run.
+     */
+    private static void runForked(String path, PrintStream out) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Evaluator.class.getName());
+        command.addAll(childOptions);
+        command.add("--child");
+        command.add(path);
+        lock(timing.writeLock());
+        try {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            try (InputStream in = process.getInputStream()) {
+                in.transferTo(out);
+            }
+            int exit = process.waitFor();
+            if (exit != 0)
+                out.println("Forked JVM for " + path + " exited with status " + exit);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not fork a JVM for " + path, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            unlock(timing.writeLock());
+        }
+    }
+}
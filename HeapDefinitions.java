@@ -0,0 +1,64 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Keeps definitions as Strings on the heap, indexed by id. Released ids are
+ * stacked and handed out again.
+ */
+class HeapDefinitions implements DefinitionStore {
+    private String[] defs = new String[16];
+    private int used;
+    private int[] free = new int[16];
+    private int freeTop;
+
+    public int put(String definition) {
+        if (definition == null)
+            return NONE;
+        int id;
+        if (freeTop > 0) {
+            id = free[--freeTop];
+        } else {
+            if (used == defs.length) {
+                String[] grown = new String[defs.length * 2];
+                System.arraycopy(defs, 0, grown, 0, used);
+                defs = grown;
+            }
+            id = used++;
+        }
+        defs[id] = definition;
+        return id;
+    }
+
+    public String get(int id) {
+        return id == NONE ? null : defs[id];
+    }
+
+    public int utf8Length(int id) {
+        return id == NONE ? -1 : TrieSnapshot.utf8Length(defs[id]);
+    }
+
+    public byte[] utf8(int id) {
+        return id == NONE ? null : defs[id].getBytes(StandardCharsets.UTF_8);
+    }
+
+    public void release(int id) {
+        if (id == NONE)
+            return;
+        defs[id] = null;
+        if (freeTop == free.length) {
+            int[] grown = new int[free.length * 2];
+            System.arraycopy(free, 0, grown, 0, freeTop);
+            free = grown;
+        }
+        free[freeTop++] = id;
+    }
+
+    public long footprintBytes() {
+        long bytes = DictionaryEngine.align(DictionaryEngine.OBJECT_HEADER + 2 * DictionaryEngine.REFERENCE + 2 * 4);
+        bytes += DictionaryEngine.arrayBytes(defs.length, DictionaryEngine.REFERENCE);
+        bytes += DictionaryEngine.arrayBytes(free.length, 4);
+        for (int i = 0; i < used; i++) {
+            bytes += DictionaryEngine.stringBytes(defs[i]);
+        }
+        return bytes;
+    }
+}
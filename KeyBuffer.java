@@ -0,0 +1,108 @@
+import java.nio.ByteBuffer;
+
+/**
+ * An append-only buffer of key characters. Labels are views into its chunks,
+ * so once a suffix has been copied in, splitting or extending a label never
+ * copies characters again. Chunks are never moved or reused, so characters
+ * of removed words and merged labels stay allocated until compress() copies
+ * the live labels into a fresh buffer.
+ */
+class KeyBuffer {
+    static final char[] EMPTY = new char[0];
+    private static final int MIN_CHUNK = 1 << 10;
+    private static final int MAX_CHUNK = 1 << 16;
+
+    private char[] chunk;
+    private int used;
+    private long allocated; // characters in all chunks handed out so far
+
+    public KeyBuffer() {
+        this.chunk = EMPTY;
+        this.used = 0;
+        this.allocated = 0;
+    }
+
+    /**
+     * Copies word[from, to) into the buffer and points the node's label at it
+     */
+    public void append(TrieNode node, String word, int from, int to) {
+        reserve(to - from);
+        word.getChars(from, to, chunk, used);
+        node.src = chunk;
+        node.off = used;
+        node.len = to - from;
+        used += to - from;
+    }
+
+    /**
+     * Copies the labels of a chain of single children, starting at head, into
+     * the buffer as one label of the given total length and points the head's
+     * label at it
+     */
+    public void appendChain(TrieNode head, int length) {
+        reserve(length);
+        int at = used;
+        TrieNode node = head;
+        while (true) {
+            System.arraycopy(node.src, node.off, chunk, at, node.len);
+            at += node.len;
+            if (at - used == length)
+                break;
+            node = node.children[0];
+        }
+        head.src = chunk;
+        head.off = used;
+        head.len = length;
+        used += length;
+    }
+
+    /**
+     * Copies the node's label into the buffer and points the label at the copy
+     */
+    public void copy(TrieNode node) {
+        reserve(node.len);
+        System.arraycopy(node.src, node.off, chunk, used, node.len);
+        node.src = chunk;
+        node.off = used;
+        used += node.len;
+    }
+
+    /**
+     * Allocates a chunk for labels filled in from outside, such as a loaded
+     * snapshot. Appends never write into it, but it is counted as allocated.
+     */
+    public char[] detachedChunk(int length) {
+        allocated += length;
+        return length == 0 ? EMPTY : new char[length];
+    }
+
+    /**
+     * Copies length characters stored one byte each, as in snapshots and
+     * checkpoints, from the buffer into the key buffer and points the node's
+     * label at them
+     */
+    public void appendLatin1(TrieNode node, ByteBuffer bytes, int length) {
+        reserve(length);
+        for (int i = 0; i < length; i++) {
+            chunk[used + i] = (char) (bytes.get() & 0xFF);
+        }
+        node.src = length == 0 ? EMPTY : chunk;
+        node.off = length == 0 ? 0 : used;
+        node.len = length;
+        used += length;
+    }
+
+    public long allocatedChars() {
+        return allocated;
+    }
+
+    private void reserve(int length) {
+        if (used + length <= chunk.length)
+            return;
+        // chunks grow up to a cap; a label longer than that gets a chunk of its own
+        int size = Math.max(Math.min(Math.max(chunk.length * 2, MIN_CHUNK), MAX_CHUNK), length);
+        chunk = new char[size];
+        used = 0;
+        allocated += size;
+    }
+}
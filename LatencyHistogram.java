@@ -0,0 +1,91 @@
+import java.util.Arrays;
+
+/**
+ * A fixed-size, log-bucketed histogram of latencies in nanoseconds, laid out
+ * the way HdrHistogram lays out its counts: values are grouped by their
+ * highest set bit, and each group is split into 128 linear sub-buckets, so any
+ * recorded value is known to within 1/128 (under 1%) of itself. The whole
+ * range of a long fits in 7296 counters, and recording is a few shifts and an
+ * increment with no allocation.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_BITS = SUB_BUCKET_BITS - 1;
+    private static final int SUB_BUCKET_HALF = 1 << SUB_BUCKET_HALF_BITS;
+    private static final long SUB_BUCKET_MASK = SUB_BUCKET_COUNT - 1;
+    private static final int LEADING_ZERO_BASE = 64 - SUB_BUCKET_HALF_BITS - 1;
+    private static final int BUCKETS = LEADING_ZERO_BASE; // enough for any non-negative long
+
+    private final long[] counts = new long[(BUCKETS + 1) << SUB_BUCKET_HALF_BITS];
+    private long count;
+    private long sum;
+    private long max;
+
+    /**
+     * Records one latency; negative values are counted as zero
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts[indexOf(value)]++;
+        count++;
+        sum += value;
+        if (value > max)
+            max = value;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public double mean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    /**
+     * Gives the smallest recorded value that at least the given percentage of
+     * recordings are at or below, up to the precision of its sub-bucket
+     *
+     * @param percentile A percentage between 0 and 100
+     * @return The latency in nanoseconds, or 0 if nothing was recorded
+     */
+    public long percentile(double percentile) {
+        if (count == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target)
+                return Math.min(highestEquivalent(i), max);
+        }
+        return max;
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    private static int indexOf(long value) {
+        int bucket = LEADING_ZERO_BASE - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK);
+        int subBucket = (int) (value >>> bucket);
+        return ((bucket + 1) << SUB_BUCKET_HALF_BITS) + subBucket - SUB_BUCKET_HALF;
+    }
+
+    private static long highestEquivalent(int index) {
+        int bucket = (index >> SUB_BUCKET_HALF_BITS) - 1;
+        int subBucket = (index & (SUB_BUCKET_HALF - 1)) + SUB_BUCKET_HALF;
+        if (bucket < 0) {
+            subBucket -= SUB_BUCKET_HALF;
+            bucket = 0;
+        }
+        return ((long) subBucket << bucket) + (1L << bucket) - 1;
+    }
+}
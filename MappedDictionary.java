@@ -0,0 +1,328 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * A read-only dictionary that answers queries straight from a snapshot written
+ * by Dictionary.save. The node records, labels and definitions are mapped
+ * read-only and walked in place, so opening costs a few system calls whatever
+ * the size, no TrieNode is ever built, the pages are shared through the page
+ * cache by every process that maps the same file, and the heap holds only
+ * this object and the definitions handed out.
+ *
+ * Every read is an absolute get, so any number of threads may query one
+ * instance at once. Each section must be under 2 GB, the limit of one
+ * mapping.
+ */
+public class MappedDictionary implements DictionaryEngine {
+    private final MappedByteBuffer nodes;
+    private final MappedByteBuffer labels;
+    private final MappedByteBuffer definitions;
+    private final int size;
+
+    private MappedDictionary(MappedByteBuffer nodes, MappedByteBuffer labels, MappedByteBuffer definitions, int size) {
+        this.nodes = nodes;
+        this.labels = labels;
+        this.definitions = definitions;
+        this.size = size;
+    }
+
+    /**
+     * Maps a snapshot. Only the header is read; pages are faulted in as
+     * queries reach them.
+     *
+     * @param path   The snapshot file
+     * @param verify Whether to check the checksum first, which reads the
+     *               whole file once
+     * @return The mapped dictionary
+     * @throws IOException If the file cannot be mapped or is not an intact
+     *                     snapshot
+     */
+    public static MappedDictionary open(String path, boolean verify) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            ByteBuffer header = TrieSnapshot.readHeader(channel, path);
+            int size = header.getInt(8);
+            long labelsAt = header.getLong(16);
+            long labelBytes = header.getLong(24);
+            long definitionsAt = header.getLong(32);
+            long definitionBytes = header.getLong(40);
+            if (labelsAt - TrieSnapshot.HEADER_BYTES > Integer.MAX_VALUE || definitionBytes > Integer.MAX_VALUE)
+                throw new IOException("Dictionary snapshot section too large to map: " + path);
+
+            MappedByteBuffer nodes = map(channel, TrieSnapshot.HEADER_BYTES, labelsAt - TrieSnapshot.HEADER_BYTES);
+            MappedByteBuffer labels = map(channel, labelsAt, labelBytes);
+            MappedByteBuffer definitions = map(channel, definitionsAt, definitionBytes);
+            if (verify) {
+                CRC32C crc = new CRC32C();
+                crc.update(header.array(), 0, TrieSnapshot.CHECKSUM_AT);
+                crc.update(nodes.duplicate());
+                crc.update(labels.duplicate());
+                crc.update(definitions.duplicate());
+                if ((int) crc.getValue() != header.getInt(TrieSnapshot.CHECKSUM_AT))
+                    throw new IOException("Dictionary snapshot checksum mismatch: " + path);
+            }
+            // the mappings stay valid after the channel is closed
+            return new MappedDictionary(nodes, labels, definitions, size);
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long position, long length) throws IOException {
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        return buf;
+    }
+
+    public void add(String word, String definition) {
+        throw new UnsupportedOperationException("MappedDictionary is read-only");
+    }
+
+    public void remove(String word) {
+        throw new UnsupportedOperationException("MappedDictionary is read-only");
+    }
+
+    public void compress() {
+        // a snapshot is always compressed
+    }
+
+    public String getDefinition(String word) {
+        int node = find(word);
+        return node >= 0 ? definition(node) : null;
+    }
+
+    public String getSequence(String word) {
+        int node = 0;
+        int idx = 0;
+        StringBuilder sb = new StringBuilder();
+
+        while (idx < word.length()) {
+            int child = child(node, word.charAt(idx));
+            if (child < 0 || !occursIn(child, word, idx))
+                return null;
+            if (sb.length() > 0)
+                sb.append("-");
+            int off = field(child, TrieSnapshot.LABEL_OFFSET);
+            int len = labelLength(child);
+            for (int i = 0; i < len; i++) {
+                sb.append((char) (labels.get(off + i) & 0xFF));
+            }
+            idx += len;
+            node = child;
+        }
+
+        return isWordEnd(node) ? sb.toString() : null;
+    }
+
+    public int countPrefix(String prefix) {
+        int node = 0;
+        int idx = 0;
+
+        while (idx < prefix.length()) {
+            int child = child(node, prefix.charAt(idx));
+            if (child < 0)
+                return 0;
+            int len = Math.min(labelLength(child), prefix.length() - idx);
+            if (!startsWith(child, prefix, idx, len))
+                return 0;
+            idx += len;
+            node = child;
+        }
+
+        return field(node, TrieSnapshot.COUNT);
+    }
+
+    public void forEachWord(WordVisitor visitor) {
+        StringBuilder word = new StringBuilder();
+        // pairs of node and the length of its parent's word
+        int[] stack = new int[32];
+        int depth = 0;
+        stack[depth++] = 0;
+        stack[depth++] = 0;
+        while (depth > 0) {
+            int parentLength = stack[--depth];
+            int node = stack[--depth];
+            word.setLength(parentLength);
+            int off = field(node, TrieSnapshot.LABEL_OFFSET);
+            int len = labelLength(node);
+            for (int i = 0; i < len; i++) {
+                word.append((char) (labels.get(off + i) & 0xFF));
+            }
+            if (isWordEnd(node))
+                visitor.visit(word.toString(), definition(node));
+            int children = Integer.bitCount(field(node, TrieSnapshot.BITMAP));
+            int first = field(node, TrieSnapshot.FIRST_CHILD);
+            if (depth + 2 * children > stack.length) {
+                int[] grown = new int[Math.max(stack.length * 2, depth + 2 * children)];
+                System.arraycopy(stack, 0, grown, 0, depth);
+                stack = grown;
+            }
+            // push in reverse so children come off the stack in character order
+            for (int i = children - 1; i >= 0; i--) {
+                stack[depth++] = first + i;
+                stack[depth++] = word.length();
+            }
+        }
+    }
+
+    public long footprintBytes() {
+        // the mapped sections live in the page cache, not on the heap
+        return DictionaryEngine.align(DictionaryEngine.OBJECT_HEADER + 3 * DictionaryEngine.REFERENCE + 4)
+                + 3 * DictionaryEngine.align(DictionaryEngine.OBJECT_HEADER + 48);
+    }
+
+    /**
+     * Gives the number of node records in the snapshot
+     */
+    public int nodeCount() {
+        return size;
+    }
+
+    private int field(int node, int offset) {
+        return nodes.getInt(node * TrieSnapshot.NODE_BYTES + offset);
+    }
+
+    /**
+     * Decodes the definition of the node, or gives null if it has none
+     */
+    private String definition(int node) {
+        int length = field(node, TrieSnapshot.DEFINITION_LENGTH);
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        definitions.get((int) nodes.getLong(node * TrieSnapshot.NODE_BYTES + TrieSnapshot.DEFINITION_OFFSET), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int labelLength(int node) {
+        return field(node, TrieSnapshot.LABEL_LENGTH) >>> 1;
+    }
+
+    private boolean isWordEnd(int node) {
+        return (field(node, TrieSnapshot.LABEL_LENGTH) & 1) != 0;
+    }
+
+    /**
+     * Gives the record of the child whose label starts with c, or -1 if there
+     * is none
+     */
+    private int child(int node, char c) {
+        int bit = TrieNode.bitFor(c);
+        int bitmap = field(node, TrieSnapshot.BITMAP);
+        if ((bitmap & bit) == 0)
+            return -1;
+        return field(node, TrieSnapshot.FIRST_CHILD) + Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    /**
+     * Checks that the whole label of the node occurs in the word at idx
+     */
+    private boolean occursIn(int node, String word, int idx) {
+        int len = labelLength(node);
+        return len <= word.length() - idx && startsWith(node, word, idx, len);
+    }
+
+    /**
+     * Checks that the first n characters of the node's label occur in the word
+     * at idx
+     */
+    private boolean startsWith(int node, String word, int idx, int n) {
+        int off = field(node, TrieSnapshot.LABEL_OFFSET);
+        for (int i = 0; i < n; i++) {
+            if ((labels.get(off + i) & 0xFF) != word.charAt(idx + i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gives the record at which the word ends, or -1 if it is not stored
+     */
+    private int find(String word) {
+        int node = 0;
+        int idx = 0;
+
+        while (idx < word.length()) {
+            int child = child(node, word.charAt(idx));
+            if (child < 0 || !occursIn(child, word, idx))
+                return -1;
+            idx += labelLength(child);
+            node = child;
+        }
+
+        return isWordEnd(node) ? node : -1;
+    }
+
+    /**
+     * Compares opening a snapshot in place with loading it onto the heap, then
+     * runs the queries of a test case against both and checks that they agree.
+     * Adds and removes in the test case are skipped, so every query is
+     * answered from the snapshot as saved.
+     *
+     * Usage: java MappedDictionary [--verify] snapshot [testcase.txt]
+     */
+    public static void main(String[] args) throws IOException {
+        boolean verify = false;
+        String snapshot = null;
+        String input = null;
+        for (String arg : args) {
+            if (arg.equals("--verify"))
+                verify = true;
+            else if (snapshot == null)
+                snapshot = arg;
+            else
+                input = arg;
+        }
+        if (snapshot == null) {
+            System.out.println("Usage: java MappedDictionary [--verify] snapshot [testcase.txt]");
+            return;
+        }
+
+        long start = System.nanoTime();
+        MappedDictionary mapped = open(snapshot, verify);
+        long opened = System.nanoTime();
+        Dictionary loaded = Dictionary.load(snapshot);
+        long end = System.nanoTime();
+        System.out.println(String.format("%d nodes, %d words: mapped in %.3f ms, loaded in %.3f ms", mapped.nodeCount(),
+                mapped.countPrefix(""), (opened - start) / 1e6, (end - opened) / 1e6));
+        if (input == null)
+            return;
+
+        Operation[] operations = new TestCase(input).operations;
+        long mappedTime = 0;
+        long loadedTime = 0;
+        int queries = 0;
+        for (Operation op : operations) {
+            if (op.type != OperationType.GET_DEF && op.type != OperationType.COUNT && op.type != OperationType.GET_SEQ)
+                continue;
+            long t0 = System.nanoTime();
+            String fromMapped = query(mapped, op);
+            long t1 = System.nanoTime();
+            String fromLoaded = query(loaded, op);
+            long t2 = System.nanoTime();
+            mappedTime += t1 - t0;
+            loadedTime += t2 - t1;
+            queries++;
+            if (!String.valueOf(fromLoaded).equals(String.valueOf(fromMapped)))
+                throw new IllegalStateException("mapped and loaded dictionaries differ on " + op.word + ": "
+                        + fromMapped + " != " + fromLoaded);
+        }
+        System.out.println(String.format("%d queries agree: %.1f ns per query mapped, %.1f ns loaded", queries,
+                (double) mappedTime / Math.max(1, queries), (double) loadedTime / Math.max(1, queries)));
+    }
+
+    private static String query(DictionaryEngine dictionary, Operation op) {
+        switch (op.type) {
+            case OperationType.GET_DEF:
+                return dictionary.getDefinition(op.word);
+            case OperationType.COUNT:
+                return String.valueOf(dictionary.countPrefix(op.word));
+            default:
+                return dictionary.getSequence(op.word);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+class Operation {
+    int type;
+    String word;
+    String definition;
+    String expected;
+    int expectedCount; // the expectation of a countPrefix, which is kept as a number
+
+    Operation(int type, String word, String definition, String expected) {
+        this.type = type;
+        this.word = word;
+        this.definition = definition;
+        this.expected = expected;
+    }
+
+    Operation(String prefix, int expectedCount) {
+        this.type = OperationType.COUNT;
+        this.word = prefix;
+        this.expectedCount = expectedCount;
+    }
+
+    public String toString() {
+        switch (type) {
+            case OperationType.ADD:
+                return "Op:[add " + word + " \"" + definition + "\"]";
+            case OperationType.REMOVE:
+                return "Op:[remove " + word + "]";
+            case OperationType.GET_DEF:
+                return "Op:[getDefinition " + word + "]";
+            case OperationType.GET_SEQ:
+                return "Op:[getSequence " + word + "]";
+            case OperationType.COUNT:
+                return "Op:[countPrefix " + word + "]";
+            case OperationType.COMPRESS:
+                return "Op:[compress]";
+            default:
+                return "Op:[Invalid]";
+        }
+    }
+}
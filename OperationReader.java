@@ -0,0 +1,173 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads test case files straight from bytes. Each operation is one line: the
+ * reader finds the line in its buffer, then splits off the operation type,
+ * the word and the rest of the line without regular expressions or per-line
+ * String copies. Words and expectations are decoded as Latin-1 when they are
+ * plain ASCII and as UTF-8 otherwise.
+ */
+class OperationReader implements TestCaseReader {
+    private final InputStream in;
+    private byte[] buf;
+    private int pos; // start of the unread bytes
+    private int limit; // end of the valid bytes
+    private boolean eof;
+    private long bytesRead;
+    private int lineNumber;
+    private int lineStart;
+    private int lineEnd;
+
+    OperationReader(InputStream in) {
+        this.in = in;
+        this.buf = new byte[1 << 16];
+    }
+
+    /**
+     * Reads the operation count that starts a test case file
+     */
+    public int readCount() throws IOException {
+        if (!nextNonBlankLine())
+            throw new IOException("Missing operation count");
+        int at = skipSpace(lineStart);
+        int end = tokenEnd(at);
+        return parseInt(at, end);
+    }
+
+    /**
+     * Reads the next operation, or gives null at the end of the input
+     */
+    public Operation next() throws IOException {
+        if (!nextNonBlankLine())
+            return null;
+        int at = skipSpace(lineStart);
+        int end = tokenEnd(at);
+        int type = parseInt(at, end);
+        if (type == OperationType.COMPRESS)
+            return new Operation(OperationType.COMPRESS, null, null, null);
+
+        at = skipSpace(end);
+        end = tokenEnd(at);
+        if (at == end)
+            throw new IOException("Missing word at line " + lineNumber);
+        String word = decode(at, end);
+
+        // the rest of the line, trimmed the way String.trim() would
+        int restStart = end;
+        int restEnd = lineEnd;
+        while (restStart < restEnd && (buf[restStart] & 0xFF) <= ' ')
+            restStart++;
+        while (restEnd > restStart && (buf[restEnd - 1] & 0xFF) <= ' ')
+            restEnd--;
+
+        switch (type) {
+            case OperationType.ADD:
+                return new Operation(OperationType.ADD, word, decode(restStart, restEnd), null);
+            case OperationType.REMOVE:
+                return new Operation(OperationType.REMOVE, word, null, null);
+            case OperationType.GET_DEF:
+            case OperationType.GET_SEQ:
+                return new Operation(type, word, null, decode(restStart, restEnd));
+            case OperationType.COUNT:
+                return new Operation(word, parseInt(restStart, restEnd));
+            default:
+                throw new IOException("Invalid operation type: " + type + " at line " + lineNumber);
+        }
+    }
+
+    public long bytesRead() {
+        return bytesRead;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean nextNonBlankLine() throws IOException {
+        while (nextLine()) {
+            if (skipSpace(lineStart) < lineEnd)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Moves [lineStart, lineEnd) to the next line, without its terminator,
+     * refilling and if needed growing the buffer until the whole line is in it
+     */
+    private boolean nextLine() throws IOException {
+        int scan = pos;
+        while (true) {
+            while (scan < limit && buf[scan] != '\n')
+                scan++;
+            if (scan < limit || (eof && pos < limit)) {
+                lineStart = pos;
+                lineEnd = scan;
+                if (lineEnd > lineStart && buf[lineEnd - 1] == '\r')
+                    lineEnd--;
+                pos = scan < limit ? scan + 1 : limit;
+                lineNumber++;
+                return true;
+            }
+            if (eof)
+                return false;
+
+            // keep the partial line, then read more behind it
+            int kept = limit - pos;
+            if (kept == buf.length)
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            else if (pos > 0)
+                System.arraycopy(buf, pos, buf, 0, kept);
+            pos = 0;
+            limit = kept;
+            scan = kept;
+            int n = in.read(buf, limit, buf.length - limit);
+            if (n < 0)
+                eof = true;
+            else {
+                limit += n;
+                bytesRead += n;
+            }
+        }
+    }
+
+    private int skipSpace(int at) {
+        while (at < lineEnd && (buf[at] & 0xFF) <= ' ')
+            at++;
+        return at;
+    }
+
+    private int tokenEnd(int at) {
+        while (at < lineEnd && (buf[at] & 0xFF) > ' ')
+            at++;
+        return at;
+    }
+
+    private int parseInt(int from, int to) throws IOException {
+        if (from == to)
+            throw new IOException("Missing number at line " + lineNumber);
+        boolean negative = buf[from] == '-';
+        int at = negative ? from + 1 : from;
+        if (at == to)
+            throw new IOException("Invalid number at line " + lineNumber);
+        int value = 0;
+        for (; at < to; at++) {
+            int digit = buf[at] - '0';
+            if (digit < 0 || digit > 9)
+                throw new IOException("Invalid number at line " + lineNumber + ": " + decode(from, to));
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    private String decode(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] < 0)
+                return new String(buf, from, to - from, StandardCharsets.UTF_8);
+        }
+        return new String(buf, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,17 @@
+import java.io.IOException;
+
+/**
+ * Something that hands out the operations of a test case one at a time
+ */
+interface OperationSource extends AutoCloseable {
+    /**
+     * Gives the next operation, or null when there are no more
+     */
+    Operation next() throws IOException;
+
+    /**
+     * Releases whatever the source holds; narrowed from AutoCloseable so that
+     * closing never throws InterruptedException
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,27 @@
+class OperationType {
+    public static final int ADD = 1;
+    public static final int REMOVE = 2;
+    public static final int GET_DEF = 3;
+    public static final int COUNT = 4;
+    public static final int COMPRESS = 5;
+    public static final int GET_SEQ = 6;
+
+    static String name(int type) {
+        switch (type) {
+            case ADD:
+                return "add";
+            case REMOVE:
+                return "remove";
+            case GET_DEF:
+                return "getDefinition";
+            case COUNT:
+                return "countPrefix";
+            case COMPRESS:
+                return "compress";
+            case GET_SEQ:
+                return "getSequence";
+            default:
+                return "invalid";
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Parses ahead of execution on a separate thread. Operations are handed over
+ * in batches through a bounded queue, so at most a few batches are ever held
+ * in memory no matter how long the test case is.
+ */
+class ReadAheadSource implements OperationSource {
+    private static final int BATCH = 1024;
+    private static final int BATCHES_AHEAD = 4;
+    private static final Operation[] END = new Operation[0];
+
+    private final BlockingQueue<Operation[]> queue = new ArrayBlockingQueue<>(BATCHES_AHEAD);
+    private final Thread thread;
+    private volatile IOException failure;
+    private Operation[] batch = new Operation[0];
+    private int next;
+
+    /**
+     * Starts reading at most limit operations from the reader
+     */
+    ReadAheadSource(OperationSource reader, int limit) {
+        thread = new Thread(() -> readAhead(reader, limit), "read-ahead");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void readAhead(OperationSource reader, int limit) {
+        boolean closed = false;
+        try {
+            int remaining = limit;
+            while (remaining > 0) {
+                Operation[] ops = new Operation[Math.min(BATCH, remaining)];
+                int n = 0;
+                Operation op;
+                while (n < ops.length && (op = reader.next()) != null)
+                    ops[n++] = op;
+                if (n > 0)
+                    queue.put(n == ops.length ? ops : Arrays.copyOf(ops, n));
+                if (n < ops.length)
+                    break;
+                remaining -= n;
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            // a malformed line fails the test case like a read error does
+            failure = new IOException(e.toString(), e);
+        } catch (InterruptedException e) {
+            closed = true; // closed early; nobody is waiting for the end marker
+        } finally {
+            // whatever stopped the reading, the consumer must not wait forever
+            if (!closed) {
+                try {
+                    queue.put(END);
+                } catch (InterruptedException e) {
+                    // closed early
+                }
+            }
+        }
+    }
+
+    public Operation next() throws IOException {
+        if (next == batch.length) {
+            if (batch == END)
+                return null;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for operations");
+            }
+            next = 0;
+            if (batch == END) {
+                if (failure != null)
+                    throw failure;
+                return null;
+            }
+        }
+        Operation op = batch[next];
+        batch[next++] = null; // let executed operations be collected
+        return op;
+    }
+
+    /**
+     * Stops the reading thread; the reader itself is left for its owner to close
+     */
+    public void close() {
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
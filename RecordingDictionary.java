@@ -0,0 +1,418 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Wraps a dictionary and records every call, with its arguments and result, as
+ * a test case file the Evaluator can replay. The calling thread only collects
+ * operations into batches; a writer thread formats and writes them, so the
+ * cost on the caller is an allocation and an array store per call. The
+ * operation count at the top of a file is written as zeros and filled in when
+ * the file is finished.
+ *
+ * Adds, removes and compress() are always recorded, since later results depend
+ * on them; queries are recorded with the given sampling probability. Once a
+ * file holds the given number of operations, recording moves on to the next
+ * one, which starts with an add of every stored word so that it replays on its
+ * own. The first file likewise starts with the words the dictionary already
+ * holds, written by the constructor. Those adds do not count towards the limit
+ * of their file. To write
+ * them without stalling the caller, the writer keeps its own copy of the words
+ * by applying the adds and removes it writes, which costs a second copy of
+ * the dictionary when files are rotated. Files are named base-000000.txt,
+ * base-000001.txt and so on.
+ *
+ * Words must not contain whitespace and definitions must not contain line
+ * breaks or be null, as the test case format cannot express them.
+ */
+public class RecordingDictionary implements DictionaryEngine, AutoCloseable {
+    private static final int BATCH = 1024;
+    private static final int BATCHES_AHEAD = 64;
+    private static final Operation[] END = new Operation[0];
+    // compared by identity; tells the writer to start the next file
+    private static final Operation ROTATE = new Operation(OperationType.COMPRESS, null, null, null);
+    private static final String EMPTY_COUNT = "0000000000\n";
+
+    private final DictionaryEngine dictionary;
+    private final String base;
+    private final double sampleRate;
+    private final long operationsPerFile;
+
+    // caller side
+    private Operation[] batch = new Operation[BATCH];
+    private int batched;
+    private long inFile; // operations recorded into the current file
+    private long sampler = 0x9E3779B97F4A7C15L; // xorshift state for sampling queries
+    private long recorded;
+    private long skipped;
+
+    // writer side
+    private final BlockingQueue<Operation[]> queue = new ArrayBlockingQueue<>(BATCHES_AHEAD);
+    private final Thread writer;
+    private final DictionaryEngine words; // the writer's copy of the stored words; null when files are not rotated
+    private volatile long dumpAdds; // adds written to replay the words stored when a file starts
+    private volatile IOException failure;
+    private int file;
+    private FileChannel channel;
+    private Writer out;
+    private int written; // operations written to the current file
+
+    /**
+     * @param dictionary        The dictionary to record calls on
+     * @param base              The path the recorded files are named after
+     * @param sampleRate        The probability that a query is recorded
+     * @param operationsPerFile How many operations a file holds before the
+     *                          next one is started
+     */
+    public RecordingDictionary(DictionaryEngine dictionary, String base, double sampleRate, long operationsPerFile)
+            throws IOException {
+        this.dictionary = dictionary;
+        this.base = base;
+        this.sampleRate = sampleRate;
+        this.operationsPerFile = operationsPerFile;
+        words = operationsPerFile == Long.MAX_VALUE ? null : new ReferenceDictionary();
+        if (words != null)
+            dictionary.forEachWord(words::add);
+        // the writer is not started yet, so the first file is written on this thread
+        openFile();
+        writeWords(words != null ? words : dictionary);
+        writer = new Thread(this::writeAll, "trace-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @throws IllegalArgumentException If the definition is null
+     */
+    public void add(String word, String definition) {
+        if (definition == null)
+            throw new IllegalArgumentException("Cannot record a null definition for: " + word);
+        dictionary.add(word, definition);
+        record(new Operation(OperationType.ADD, word, definition, null));
+    }
+
+    public void remove(String word) {
+        dictionary.remove(word);
+        record(new Operation(OperationType.REMOVE, word, null, null));
+    }
+
+    public String getDefinition(String word) {
+        String result = dictionary.getDefinition(word);
+        if (sampled())
+            record(new Operation(OperationType.GET_DEF, word, null, String.valueOf(result)));
+        return result;
+    }
+
+    public String getSequence(String word) {
+        String result = dictionary.getSequence(word);
+        if (sampled())
+            record(new Operation(OperationType.GET_SEQ, word, null, String.valueOf(result)));
+        return result;
+    }
+
+    public int countPrefix(String prefix) {
+        int result = dictionary.countPrefix(prefix);
+        if (sampled())
+            record(new Operation(prefix, result));
+        return result;
+    }
+
+    public void compress() {
+        dictionary.compress();
+        record(new Operation(OperationType.COMPRESS, null, null, null));
+    }
+
+    public void forEachWord(WordVisitor visitor) {
+        dictionary.forEachWord(visitor);
+    }
+
+    public long footprintBytes() {
+        return dictionary.footprintBytes();
+    }
+
+    /**
+     * Gives the number of operations recorded so far, including the adds that
+     * start each file with the stored words
+     */
+    public long recorded() {
+        return recorded + dumpAdds;
+    }
+
+    /**
+     * Gives the number of queries left out by sampling
+     */
+    public long skipped() {
+        return skipped;
+    }
+
+    private boolean sampled() {
+        if (sampleRate >= 1)
+            return true;
+        sampler ^= sampler << 13;
+        sampler ^= sampler >>> 7;
+        sampler ^= sampler << 17;
+        boolean keep = (sampler >>> 11) * 0x1.0p-53 < sampleRate;
+        if (!keep)
+            skipped++;
+        return keep;
+    }
+
+    private void record(Operation op) {
+        if (inFile >= operationsPerFile) {
+            // the writer starts the next file with the words it holds at this point
+            inFile = 0;
+            enqueue(ROTATE);
+        }
+        enqueue(op);
+        inFile++;
+        recorded++;
+    }
+
+    private void enqueue(Operation op) {
+        batch[batched++] = op;
+        if (batched == BATCH)
+            handOff();
+    }
+
+    /**
+     * Hands the current batch to the writer. A writer that has fallen a whole
+     * queue behind makes the caller wait rather than lose operations, as the
+     * trace would not replay without them.
+     */
+    private void handOff() {
+        if (batched == 0)
+            return;
+        put(batched == BATCH ? batch : Arrays.copyOf(batch, batched));
+        batch = new Operation[BATCH];
+        batched = 0;
+    }
+
+    /**
+     * Queues a batch for the writer even if the caller is interrupted, since
+     * the operations in it have already happened; the interrupt is kept for
+     * the caller
+     */
+    private void put(Operation[] ops) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(ops);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Writes out everything recorded so far, finishes the current file and
+     * stops the writer
+     *
+     * @throws IOException If any write failed
+     */
+    public void close() throws IOException {
+        handOff();
+        put(END);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    private void writeAll() {
+        try {
+            while (true) {
+                Operation[] ops = queue.take();
+                if (ops == END)
+                    break;
+                // after a failure keep draining, so the caller never blocks on a full queue
+                if (failure != null)
+                    continue;
+                try {
+                    for (Operation op : ops) {
+                        if (op == ROTATE) {
+                            finishFile();
+                            file++;
+                            openFile();
+                            writeWords(words);
+                        } else {
+                            write(op);
+                            if (words != null && op.type == OperationType.ADD)
+                                words.add(op.word, op.definition);
+                            else if (words != null && op.type == OperationType.REMOVE)
+                                words.remove(op.word);
+                        }
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure == null)
+                finishFile();
+        } catch (InterruptedException e) {
+            // abandoned; the file is left with a zero count
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private void openFile() throws IOException {
+        String path = String.format("%s-%06d.txt", base, file);
+        channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8),
+                1 << 16);
+        out.write(EMPTY_COUNT);
+        written = 0;
+    }
+
+    private void finishFile() throws IOException {
+        out.flush();
+        String count = String.format("%010d", written);
+        channel.write(ByteBuffer.wrap(count.getBytes(StandardCharsets.US_ASCII)), 0);
+        out.close();
+    }
+
+    /**
+     * Adds every word of the given dictionary to the file just opened, so it
+     * can be replayed alone
+     */
+    private void writeWords(DictionaryEngine source) throws IOException {
+        try {
+            source.forEachWord((word, definition) -> {
+                try {
+                    write(new Operation(OperationType.ADD, word, definition, null));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                dumpAdds++;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void write(Operation op) throws IOException {
+        switch (op.type) {
+            case OperationType.ADD:
+                out.write("1 " + op.word + " " + op.definition + "\n");
+                break;
+            case OperationType.REMOVE:
+                out.write("2 " + op.word + "\n");
+                break;
+            case OperationType.GET_DEF:
+                out.write("3 " + op.word + " " + op.expected + "\n");
+                break;
+            case OperationType.COUNT:
+                out.write("4 " + op.word + " " + op.expectedCount + "\n");
+                break;
+            case OperationType.COMPRESS:
+                out.write("5\n");
+                break;
+            case OperationType.GET_SEQ:
+                out.write("6 " + op.word + " " + op.expected + "\n");
+                break;
+            default:
+                throw new IOException("Invalid operation type: " + op.type);
+        }
+        written++;
+    }
+
+    /**
+     * Replays a test case through a recording dictionary and reports the
+     * recording overhead against the same replay without it. The recorded
+     * files pass the Evaluator exactly when the original test case does.
+     *
+     * Usage: java RecordingDictionary [--engine=trie|arena] [--sample=F]
+     * [--rotate=N] testcase.txt base
+     */
+    public static void main(String[] args) throws IOException {
+        String engine = "trie";
+        double sample = 1;
+        long rotate = Long.MAX_VALUE;
+        String input = null;
+        String base = null;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--engine="))
+                engine = value;
+            else if (arg.startsWith("--sample="))
+                sample = Double.parseDouble(value);
+            else if (arg.startsWith("--rotate="))
+                rotate = Long.parseLong(value);
+            else if (input == null)
+                input = arg;
+            else
+                base = arg;
+        }
+        if (base == null) {
+            System.out.println("Usage: java RecordingDictionary [--engine=trie|arena] [--sample=F] [--rotate=N] testcase.txt base");
+            return;
+        }
+
+        TestCase testCase = new TestCase(input);
+        long plain = Long.MAX_VALUE;
+        long recording = Long.MAX_VALUE;
+        long recorded = 0;
+        long skipped = 0;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            replay(Evaluator.createEngine(engine), testCase);
+            plain = Math.min(plain, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            RecordingDictionary recorder = new RecordingDictionary(Evaluator.createEngine(engine), base, sample, rotate);
+            replay(recorder, testCase);
+            recording = Math.min(recording, System.nanoTime() - start);
+            // closing waits for the writer, which is not on the caller's path
+            recorder.close();
+            recorded = recorder.recorded();
+            skipped = recorder.skipped();
+        }
+        System.out.println(String.format("%d operations: %.1f ms plain, %.1f ms recording (%d recorded, %d queries sampled out)",
+                testCase.operations.length, plain / 1e6, recording / 1e6, recorded, skipped));
+    }
+
+    private static void replay(DictionaryEngine dictionary, TestCase testCase) {
+        for (Operation op : testCase.operations) {
+            switch (op.type) {
+                case OperationType.ADD:
+                    dictionary.add(op.word, op.definition);
+                    break;
+                case OperationType.REMOVE:
+                    dictionary.remove(op.word);
+                    break;
+                case OperationType.GET_DEF:
+                    dictionary.getDefinition(op.word);
+                    break;
+                case OperationType.COUNT:
+                    dictionary.countPrefix(op.word);
+                    break;
+                case OperationType.GET_SEQ:
+                    dictionary.getSequence(op.word);
+                    break;
+                case OperationType.COMPRESS:
+                    dictionary.compress();
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+import java.util.SplittableRandom;
+
+/**
+ * A deliberately different implementation of the dictionary operations, used
+ * to compute expected results: the words are kept in sorted order in a treap
+ * whose nodes count their subtrees, so the number of words below any key is a
+ * logarithmic walk. Every answer is derived from those ranks rather than from
+ * a trie:
+ *
+ * countPrefix(p) is the number of words in [p, p with its last character
+ * incremented).
+ *
+ * getSequence(w) cuts w after every depth d at which a compressed trie has a
+ * node, which is exactly where countPrefix(w[0, d]) is larger than
+ * countPrefix(w[0, d + 1]): some word either ends there or leaves the path.
+ * The counts never grow with d, so the cuts are found by binary search.
+ */
+class ReferenceDictionary implements DictionaryEngine {
+    private static final class Node {
+        final String word;
+        String definition;
+        final int priority;
+        int size = 1;
+        Node left;
+        Node right;
+
+        Node(String word, String definition, int priority) {
+            this.word = word;
+            this.definition = definition;
+            this.priority = priority;
+        }
+    }
+
+    private final SplittableRandom random = new SplittableRandom(0x5EED);
+    private Node root;
+
+    public void add(String word, String definition) {
+        DictionaryEngine.checkWord(word);
+        Node node = find(word);
+        if (node != null)
+            node.definition = definition;
+        else
+            root = insert(root, new Node(word, definition, random.nextInt()));
+    }
+
+    public void remove(String word) {
+        if (find(word) != null)
+            root = delete(root, word);
+    }
+
+    public String getDefinition(String word) {
+        Node node = find(word);
+        return node != null ? node.definition : null;
+    }
+
+    public int countPrefix(String prefix) {
+        if (prefix.isEmpty())
+            return size(root);
+        return countBelow(upperBound(prefix)) - countBelow(prefix);
+    }
+
+    public String getSequence(String word) {
+        if (find(word) == null)
+            return null;
+        StringBuilder sb = new StringBuilder();
+        int from = 0;
+        int depth = 1;
+        while (depth < word.length()) {
+            // the deepest d >= depth with countPrefix(word[0, d]) still equal to the one at depth
+            int count = countPrefix(word.substring(0, depth));
+            int lo = depth;
+            int hi = word.length();
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (countPrefix(word.substring(0, mid)) == count)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+            if (lo == word.length())
+                break;
+            // the count drops after lo, so a node ends there
+            if (sb.length() > 0)
+                sb.append('-');
+            sb.append(word, from, lo);
+            from = lo;
+            depth = lo + 1;
+        }
+        if (sb.length() > 0)
+            sb.append('-');
+        sb.append(word, from, word.length());
+        return sb.toString();
+    }
+
+    public void compress() {
+        // there is no trie to compress
+    }
+
+    public void forEachWord(WordVisitor visitor) {
+        forEachWord(root, visitor);
+    }
+
+    private static void forEachWord(Node node, WordVisitor visitor) {
+        if (node == null)
+            return;
+        forEachWord(node.left, visitor);
+        visitor.visit(node.word, node.definition);
+        forEachWord(node.right, visitor);
+    }
+
+    public long footprintBytes() {
+        long bytes = DictionaryEngine.align(DictionaryEngine.OBJECT_HEADER + 2 * DictionaryEngine.REFERENCE);
+        return bytes + footprintBytes(root);
+    }
+
+    private static long footprintBytes(Node node) {
+        if (node == null)
+            return 0;
+        long bytes = DictionaryEngine.align(DictionaryEngine.OBJECT_HEADER + 4 * DictionaryEngine.REFERENCE + 2 * 4);
+        bytes += DictionaryEngine.stringBytes(node.word) + DictionaryEngine.stringBytes(node.definition);
+        return bytes + footprintBytes(node.left) + footprintBytes(node.right);
+    }
+
+    /**
+     * Gives the smallest string greater than every string starting with the
+     * prefix, or null when there is none
+     */
+    private static String upperBound(String prefix) {
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE)
+            end--;
+        if (end == 0)
+            return null;
+        return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+    }
+
+    /**
+     * Counts the words that sort before the key; a null key sorts after all
+     */
+    private int countBelow(String key) {
+        if (key == null)
+            return size(root);
+        int below = 0;
+        Node node = root;
+        while (node != null) {
+            if (key.compareTo(node.word) <= 0) {
+                node = node.left;
+            } else {
+                below += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+        return below;
+    }
+
+    private Node find(String word) {
+        Node node = root;
+        while (node != null) {
+            int cmp = word.compareTo(node.word);
+            if (cmp == 0)
+                return node;
+            node = cmp < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static Node update(Node node) {
+        node.size = size(node.left) + size(node.right) + 1;
+        return node;
+    }
+
+    private static Node insert(Node node, Node added) {
+        if (node == null)
+            return added;
+        if (added.word.compareTo(node.word) < 0) {
+            node.left = insert(node.left, added);
+            if (node.left.priority > node.priority)
+                return rotateRight(node);
+        } else {
+            node.right = insert(node.right, added);
+            if (node.right.priority > node.priority)
+                return rotateLeft(node);
+        }
+        return update(node);
+    }
+
+    private static Node delete(Node node, String word) {
+        int cmp = word.compareTo(node.word);
+        if (cmp < 0) {
+            node.left = delete(node.left, word);
+        } else if (cmp > 0) {
+            node.right = delete(node.right, word);
+        } else {
+            if (node.left == null)
+                return node.right;
+            if (node.right == null)
+                return node.left;
+            // rotate the higher-priority child up and keep deleting below it
+            if (node.left.priority > node.right.priority) {
+                node = rotateRight(node);
+                node.right = delete(node.right, word);
+            } else {
+                node = rotateLeft(node);
+                node.left = delete(node.left, word);
+            }
+        }
+        return update(node);
+    }
+
+    private static Node rotateRight(Node node) {
+        Node left = node.left;
+        node.left = left.right;
+        left.right = update(node);
+        return update(left);
+    }
+
+    private static Node rotateLeft(Node node) {
+        Node right = node.right;
+        node.right = right.left;
+        right.left = update(node);
+        return update(right);
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the two ways of getting a dictionary back after a restart:
+ * parsing the word list and replaying every add and then compress(), or
+ * loading a snapshot saved by Dictionary.save. Each is run a few times untimed
+ * and then timed; the best measured time is reported, along with the time to
+ * save and the size of the snapshot. The loaded dictionary is checked word by word against the rebuilt
+ * one before any time is reported.
+ *
+ * Usage: java SnapshotBenchmark [--rounds=N] [--snapshot=path] [corpus file ...]
+ */
+public class SnapshotBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+
+    /**
+     * Collects the add operations of the corpus files into words and
+     * definitions
+     */
+    static void parse(List<String> corpus, List<String> words, List<String> definitions) {
+        for (String path : corpus) {
+            for (Operation op : new TestCase(path).operations) {
+                if (op.type == OperationType.ADD) {
+                    words.add(op.word);
+                    definitions.add(op.definition);
+                }
+            }
+        }
+    }
+
+    static Dictionary rebuild(List<String> words, List<String> definitions) {
+        Dictionary dictionary = new Dictionary();
+        for (int i = 0; i < words.size(); i++) {
+            dictionary.add(words.get(i), definitions.get(i));
+        }
+        dictionary.compress();
+        return dictionary;
+    }
+
+    /**
+     * Checks that the two dictionaries hold the same words and definitions and
+     * split every word into the same nodes
+     */
+    static void verify(Dictionary expected, Dictionary actual) {
+        List<String> words = new ArrayList<>();
+        List<String> definitions = new ArrayList<>();
+        expected.forEachWord((word, definition) -> {
+            words.add(word);
+            definitions.add(definition);
+        });
+        int[] seen = { 0 };
+        actual.forEachWord((word, definition) -> {
+            int i = seen[0]++;
+            if (i >= words.size() || !words.get(i).equals(word)
+                    || !String.valueOf(definitions.get(i)).equals(String.valueOf(definition)))
+                throw new IllegalStateException("loaded dictionary differs at word " + i + ": " + word);
+        });
+        if (seen[0] != words.size())
+            throw new IllegalStateException("loaded dictionary holds " + seen[0] + " words, expected " + words.size());
+        for (String word : words) {
+            if (!expected.getSequence(word).equals(actual.getSequence(word))
+                    || expected.countPrefix(word) != actual.countPrefix(word))
+                throw new IllegalStateException("loaded dictionary differs on " + word);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int rounds = 5;
+        String snapshot = null;
+        List<String> corpus = new ArrayList<>();
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--rounds="))
+                rounds = Integer.parseInt(value);
+            else if (arg.startsWith("--snapshot="))
+                snapshot = value;
+            else
+                corpus.add(arg);
+        }
+        if (corpus.isEmpty()) {
+            corpus.add("tests/tc_19_large_no_compression.txt");
+            corpus.add("tests/tc_20_large_compression.txt");
+        }
+        File file = snapshot != null ? new File(snapshot) : File.createTempFile("dictionary", ".snapshot");
+        if (snapshot == null)
+            file.deleteOnExit();
+
+        long parse = Long.MAX_VALUE;
+        long rebuild = Long.MAX_VALUE;
+        long save = Long.MAX_VALUE;
+        long load = Long.MAX_VALUE;
+        List<String> words = null;
+        Dictionary rebuilt = null;
+        Dictionary loaded = null;
+        for (int round = 0; round < WARMUP_ROUNDS + rounds; round++) {
+            // drop the previous round's dictionaries so they are not collected during the timed steps
+            rebuilt = null;
+            loaded = null;
+            words = new ArrayList<>();
+            List<String> definitions = new ArrayList<>();
+            long begin = System.nanoTime();
+            parse(corpus, words, definitions);
+            long start = System.nanoTime();
+            rebuilt = rebuild(words, definitions);
+            long built = System.nanoTime();
+            rebuilt.save(file.getPath());
+            long saved = System.nanoTime();
+            loaded = Dictionary.load(file.getPath());
+            long end = System.nanoTime();
+            if (round >= WARMUP_ROUNDS) {
+                parse = Math.min(parse, start - begin);
+                rebuild = Math.min(rebuild, built - start);
+                save = Math.min(save, saved - built);
+                load = Math.min(load, end - saved);
+            }
+        }
+        verify(rebuilt, loaded);
+
+        System.out.println(String.format("%d adds, %d words, snapshot of %d bytes", words.size(),
+                rebuilt.countPrefix(""), file.length()));
+        System.out.println(String.format("| %-24s | %12s |", "step", "best"));
+        System.out.println(String.format("| %-24s | %9.3f ms |", "parse word list", parse / 1e6));
+        System.out.println(String.format("| %-24s | %9.3f ms |", "rebuild (add, compress)", rebuild / 1e6));
+        System.out.println(String.format("| %-24s | %9.3f ms |", "save snapshot", save / 1e6));
+        System.out.println(String.format("| %-24s | %9.3f ms |", "load snapshot", load / 1e6));
+        System.out.println(String.format("loading takes %.1f%% of the rebuild time, %.1f%% with parsing", 100.0 * load / rebuild,
+                100.0 * load / (parse + rebuild)));
+    }
+}
@@ -0,0 +1,48 @@
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+class TestCase {
+    Operation[] operations;
+    long bytes; // size of the file parsed
+    long parseNanos; // time spent reading and parsing it
+    boolean compiled; // whether it was loaded from the compiled form
+
+    TestCase(String filepath) {
+        long start = System.nanoTime();
+        try (TestCaseReader reader = TestCaseReader.open(filepath)) {
+            compiled = reader instanceof CompiledOperationReader;
+            int numOps = reader.readCount();
+            operations = new Operation[numOps];
+            for (int i = 0; i < numOps; i++) {
+                operations[i] = reader.next();
+                if (operations[i] == null)
+                    throw new IOException("Expected " + numOps + " operations but found " + i);
+            }
+            bytes = reader.bytesRead();
+        } catch (FileNotFoundException e) {
+            System.out.println("Testcase file not found: " + filepath);
+            throw new RuntimeException(e);
+        } catch (Exception e) {
+            System.out.println("Error reading testcase file: " + filepath);
+            throw new RuntimeException(e);
+        }
+        parseNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Gives the parse throughput in megabytes (10^6 bytes) per second
+     */
+    double parseMegabytesPerSecond() {
+        return parseNanos == 0 ? 0 : bytes * 1e3 / parseNanos;
+    }
+
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        result.append("Operations[").append(operations.length).append("]:{\n");
+        for (Operation op : operations) {
+            result.append("  ").append(op.toString()).append("\n");
+        }
+        result.append("}\n");
+        return result.toString();
+    }
+}
@@ -0,0 +1,27 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * An operation source over a whole test case file, in text or compiled form
+ */
+interface TestCaseReader extends OperationSource {
+    /**
+     * Reads the operation count that starts a test case
+     */
+    int readCount() throws IOException;
+
+    /**
+     * Gives the number of bytes of the file read so far
+     */
+    long bytesRead();
+
+    /**
+     * Opens a test case file, telling compiled files from text ones by their
+     * first bytes
+     */
+    static TestCaseReader open(String path) throws IOException {
+        if (CompiledTestCase.isCompiled(path))
+            return new CompiledOperationReader(path);
+        return new OperationReader(new FileInputStream(path));
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * A node of the trie. Its label is the range [off, off + len) of src, a chunk
+ * of the dictionary's KeyBuffer. Children are kept HAMT-style: bit i of the
+ * bitmap is set when there is a child whose label starts with the character
+ * ('a' + i), and the children array holds exactly those children ordered by
+ * that character, so the child for a character sits at the popcount of the
+ * lower bits.
+ */
+class TrieNode {
+    static final TrieNode[] NO_CHILDREN = new TrieNode[0];
+
+    public char[] src;
+    public int off;
+    public int len;
+    public int bitmap;
+    public TrieNode[] children;
+    public boolean isWordEnd;
+    public int defId; // id of the definition in the dictionary's DefinitionStore
+    public int count; // number of word ends in this subtree, including this node
+    public boolean dirty; // changed, or on the path to a change, since the last checkpoint
+    public int page; // id of the node in a CheckpointLog, 0 until it is first written
+
+    public TrieNode(char[] src, int off, int len) {
+        this.src = src;
+        this.off = off;
+        this.len = len;
+        this.bitmap = 0;
+        this.children = NO_CHILDREN;
+        this.isWordEnd = false;
+        this.defId = DefinitionStore.NONE;
+        this.count = 0;
+        this.dirty = true;
+        this.page = 0;
+    }
+
+    /**
+     * Gives the bitmap bit for the first character of a label, or 0 if the
+     * character cannot be stored
+     */
+    static int bitFor(char c) {
+        int i = c - 'a';
+        return (i & ~31) == 0 ? 1 << i : 0;
+    }
+
+    /**
+     * Gives the child whose label starts with c, or null if there is none
+     */
+    public TrieNode child(char c) {
+        int bit = bitFor(c);
+        if ((bitmap & bit) == 0)
+            return null;
+        return children[Integer.bitCount(bitmap & (bit - 1))];
+    }
+
+    public char firstChar() {
+        return src[off];
+    }
+
+    /**
+     * Checks that the whole label occurs in the word at idx
+     */
+    public boolean occursIn(String word, int idx) {
+        if (len > word.length() - idx)
+            return false;
+        for (int i = 0; i < len; i++) {
+            if (src[off + i] != word.charAt(idx + i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks that the first n characters of the label occur in the word at idx
+     */
+    public boolean startsWith(String word, int idx, int n) {
+        for (int i = 0; i < n; i++) {
+            if (src[off + i] != word.charAt(idx + i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds a child; no child may already start with the same character
+     */
+    public void addChild(TrieNode child) {
+        int bit = bitFor(child.firstChar());
+        int pos = Integer.bitCount(bitmap & (bit - 1));
+        TrieNode[] grown = new TrieNode[children.length + 1];
+        System.arraycopy(children, 0, grown, 0, pos);
+        grown[pos] = child;
+        System.arraycopy(children, pos, grown, pos + 1, children.length - pos);
+        children = grown;
+        bitmap |= bit;
+    }
+
+    /**
+     * Removes the child whose label starts with c, if there is one
+     */
+    public void removeChild(char c) {
+        int bit = bitFor(c);
+        if ((bitmap & bit) == 0)
+            return;
+        int pos = Integer.bitCount(bitmap & (bit - 1));
+        if (children.length == 1) {
+            children = NO_CHILDREN;
+        } else {
+            TrieNode[] shrunk = new TrieNode[children.length - 1];
+            System.arraycopy(children, 0, shrunk, 0, pos);
+            System.arraycopy(children, pos + 1, shrunk, pos, children.length - pos - 1);
+            children = shrunk;
+        }
+        bitmap &= ~bit;
+    }
+}
@@ -0,0 +1,299 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Saves a compressed trie as a binary snapshot and loads it back. Nodes are
+ * written breadth-first as fixed-size records, so the children of a node are
+ * consecutive records ordered by their first character, and a child is found
+ * from the bitmap alone, exactly as in TrieNode. All numbers are
+ * little-endian.
+ *
+ * <pre>
+ * header (64 bytes):  int magic ("DSN1"), int version, int node count, int reserved,
+ *                     long labels offset, long label bytes,
+ *                     long definitions offset, long definition bytes,
+ *                     int CRC32C, 12 reserved bytes
+ * nodes (32 bytes):   int first child, int bitmap, int count,
+ *                     int label offset, int (label length << 1 | 1 if a word ends here),
+ *                     int definition length (-1 for none), long definition offset
+ * labels:             one byte per character; every character a trie can hold fits
+ * definitions:        UTF-8
+ * </pre>
+ *
+ * The checksum covers the header up to itself and everything after the header.
+ * The root is record 0 and its label is empty.
+ */
+class TrieSnapshot {
+    static final int MAGIC = 0x44534E31;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+    static final int NODE_BYTES = 32;
+    static final int CHECKSUM_AT = 48;
+
+    // offsets of the fields of a node record
+    static final int FIRST_CHILD = 0;
+    static final int BITMAP = 4;
+    static final int COUNT = 8;
+    static final int LABEL_OFFSET = 12;
+    static final int LABEL_LENGTH = 16;
+    static final int DEFINITION_LENGTH = 20;
+    static final int DEFINITION_OFFSET = 24;
+
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    /**
+     * Writes the trie below root to the path. The snapshot is written next to
+     * it and moved into place once complete, so a crash never leaves a
+     * half-written snapshot under the path, and the directory is forced after
+     * the move, so the new snapshot is durable once save returns.
+     */
+    static void save(TrieNode root, DefinitionStore definitions, String path) throws IOException {
+        // number the nodes breadth-first; the queue doubles as the record order
+        TrieNode[] nodes = new TrieNode[16];
+        int[] definitionLengths = new int[16]; // UTF-8 length of each node's definition, -1 for none
+        nodes[0] = root;
+        int size = 1;
+        long labelBytes = 0;
+        long definitionBytes = 0;
+        for (int i = 0; i < size; i++) {
+            TrieNode node = nodes[i];
+            labelBytes += node.len;
+            // the length alone, so each definition is read only once, when it is written
+            definitionLengths[i] = definitions.utf8Length(node.defId);
+            if (definitionLengths[i] > 0)
+                definitionBytes += definitionLengths[i];
+            if (size + node.children.length > nodes.length) {
+                int capacity = Math.max(nodes.length * 2, size + node.children.length);
+                TrieNode[] grown = new TrieNode[capacity];
+                System.arraycopy(nodes, 0, grown, 0, size);
+                nodes = grown;
+                int[] grownLengths = new int[capacity];
+                System.arraycopy(definitionLengths, 0, grownLengths, 0, size);
+                definitionLengths = grownLengths;
+            }
+            System.arraycopy(node.children, 0, nodes, size, node.children.length);
+            size += node.children.length;
+        }
+        if (labelBytes > Integer.MAX_VALUE)
+            throw new IOException("Too many label characters for a snapshot: " + labelBytes);
+
+        long labelsAt = HEADER_BYTES + (long) size * NODE_BYTES;
+        long definitionsAt = labelsAt + labelBytes;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(0);
+        header.putLong(labelsAt).putLong(labelBytes).putLong(definitionsAt).putLong(definitionBytes);
+        CRC32C crc = new CRC32C();
+        crc.update(header.array(), 0, CHECKSUM_AT);
+
+        Path target = Paths.get(path);
+        Path temporary = Paths.get(path + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(HEADER_BYTES);
+            ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+            int firstChild = 1;
+            int labelAt = 0;
+            long definitionAt = 0;
+            for (int i = 0; i < size; i++) {
+                TrieNode node = nodes[i];
+                if (buf.remaining() < NODE_BYTES)
+                    flush(channel, buf, crc);
+                int definitionLength = definitionLengths[i];
+                buf.putInt(firstChild).putInt(node.bitmap).putInt(node.count);
+                buf.putInt(labelAt).putInt(node.len << 1 | (node.isWordEnd ? 1 : 0));
+                buf.putInt(definitionLength).putLong(definitionLength < 0 ? 0 : definitionAt);
+                firstChild += node.children.length;
+                labelAt += node.len;
+                if (definitionLength > 0)
+                    definitionAt += definitionLength;
+            }
+
+            for (int i = 0; i < size; i++) {
+                TrieNode node = nodes[i];
+                for (int j = 0; j < node.len; j++) {
+                    if (!buf.hasRemaining())
+                        flush(channel, buf, crc);
+                    buf.put((byte) node.src[node.off + j]);
+                }
+            }
+
+            for (int i = 0; i < size; i++) {
+                if (definitionLengths[i] < 0)
+                    continue;
+                byte[] bytes = definitions.utf8(nodes[i].defId);
+                for (int at = 0; at < bytes.length; ) {
+                    if (!buf.hasRemaining())
+                        flush(channel, buf, crc);
+                    int n = Math.min(buf.remaining(), bytes.length - at);
+                    buf.put(bytes, at, n);
+                    at += n;
+                }
+            }
+            flush(channel, buf, crc);
+
+            header.putInt(CHECKSUM_AT, (int) crc.getValue());
+            header.rewind();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(target);
+    }
+
+    /**
+     * Forces the directory holding the file, so a rename into it survives a
+     * crash
+     */
+    static void forceDirectory(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buf, CRC32C crc) throws IOException {
+        buf.flip();
+        crc.update(buf);
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    /**
+     * Counts the bytes of the UTF-8 encoding of s without encoding it
+     */
+    static int utf8Length(String s) {
+        int bytes = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80)
+                continue;
+            if (c < 0x800) {
+                bytes++;
+            } else if (!Character.isSurrogate(c)) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                // four bytes for the pair
+                bytes += 2;
+                i++;
+            }
+            // a lone surrogate is encoded as a single '?'
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads the header of a snapshot and checks that it describes a snapshot of
+     * this version whose sections fill the file exactly
+     *
+     * @return The header, little-endian
+     */
+    static ByteBuffer readHeader(FileChannel channel, String path) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0, path);
+        header.flip();
+        if (header.getInt() != MAGIC)
+            throw new IOException("Not a dictionary snapshot: " + path);
+        int version = header.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported dictionary snapshot version " + version + ": " + path);
+        long end = header.getLong(32) + header.getLong(40);
+        if (header.getInt(8) < 1 || header.getLong(16) != HEADER_BYTES + (long) header.getInt(8) * NODE_BYTES
+                || header.getLong(32) != header.getLong(16) + header.getLong(24) || end != channel.size())
+            throw new IOException("Truncated or inconsistent dictionary snapshot: " + path);
+        return header;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position, String path) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0)
+                throw new IOException("Truncated dictionary snapshot: " + path);
+            position += n;
+        }
+    }
+
+    /**
+     * Loads a snapshot written by save. The whole file is read with bulk
+     * channel reads into one buffer and checked against its checksum before
+     * any node is built; every label then becomes a view into a single char
+     * chunk taken from keys, and every definition is put into definitions.
+     *
+     * @return The root of the loaded trie
+     */
+    static TrieNode load(String path, KeyBuffer keys, DefinitionStore definitions) throws IOException {
+        ByteBuffer header;
+        ByteBuffer body;
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            header = readHeader(channel, path);
+            if (channel.size() - HEADER_BYTES > Integer.MAX_VALUE)
+                throw new IOException("Dictionary snapshot too large to load: " + path);
+            body = ByteBuffer.allocate((int) (channel.size() - HEADER_BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, body, HEADER_BYTES, path);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(header.array(), 0, CHECKSUM_AT);
+        crc.update(body.array(), 0, body.capacity());
+        if ((int) crc.getValue() != header.getInt(CHECKSUM_AT))
+            throw new IOException("Dictionary snapshot checksum mismatch: " + path);
+
+        int size = header.getInt(8);
+        int labelsAt = (int) (header.getLong(16) - HEADER_BYTES);
+        int labelBytes = (int) header.getLong(24);
+        int definitionsAt = (int) (header.getLong(32) - HEADER_BYTES);
+        byte[] bytes = body.array();
+
+        char[] labels = keys.detachedChunk(labelBytes);
+        for (int i = 0; i < labelBytes; i++) {
+            labels[i] = (char) (bytes[labelsAt + i] & 0xFF);
+        }
+
+        // children always come after their parent, so building from the last
+        // record backwards finds every child already built
+        TrieNode[] nodes = new TrieNode[size];
+        for (int i = size - 1; i >= 0; i--) {
+            int at = i * NODE_BYTES;
+            int labelLength = body.getInt(at + LABEL_LENGTH);
+            int labelOffset = body.getInt(at + LABEL_OFFSET);
+            int definitionLength = body.getInt(at + DEFINITION_LENGTH);
+            int firstChild = body.getInt(at + FIRST_CHILD);
+            int bitmap = body.getInt(at + BITMAP);
+            int children = Integer.bitCount(bitmap);
+            if (labelOffset < 0 || (labelLength >>> 1) > labelBytes - labelOffset
+                    || (children > 0 && (firstChild <= i || firstChild > size - children)))
+                throw new IOException("Corrupt dictionary snapshot at node " + i + ": " + path);
+
+            TrieNode node = new TrieNode(labels, labelOffset, labelLength >>> 1);
+            node.isWordEnd = (labelLength & 1) != 0;
+            node.count = body.getInt(at + COUNT);
+            if (definitionLength >= 0) {
+                long definitionOffset = body.getLong(at + DEFINITION_OFFSET);
+                if (definitionOffset < 0 || definitionOffset + definitionLength > header.getLong(40))
+                    throw new IOException("Corrupt dictionary snapshot at node " + i + ": " + path);
+                node.defId = definitions.put(new String(bytes, definitionsAt + (int) definitionOffset,
+                        definitionLength, StandardCharsets.UTF_8));
+            }
+            if (children > 0) {
+                node.bitmap = bitmap;
+                node.children = new TrieNode[children];
+                System.arraycopy(nodes, firstChild, node.children, 0, children);
+            }
+            nodes[i] = node;
+        }
+        return nodes[0];
+    }
+}
@@ -0,0 +1,324 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Generates test case files in the Evaluator's text format, with every
+ * expected result computed by a ReferenceDictionary as the operations are
+ * generated.
+ *
+ * Words are a function of their index in a universe of --words words, so the
+ * universe is never stored: each one is rebuilt from the seed when needed.
+ * A word is an optional shared stem of --prefix-depth characters, one of
+ * --stems stems, followed by random characters of the alphabet up to a length
+ * drawn from --length. Adds take fresh words until the universe is used up and
+ * then update existing ones; removes and lookups pick among the words added so
+ * far with a Zipf skew of --zipf (0 is uniform), where earlier words are more
+ * popular, and a --miss fraction of lookups asks for words never added.
+ *
+ * Usage: java WorkloadGenerator [--words=N] [--ops=N] [--preload=N]
+ * [--mix=add:50,remove:10,get:20,count:15,seq:5] [--length=uniform:3:12 |
+ * normal:MEAN:SD | fixed:N] [--alphabet=abc...] [--prefix-depth=N]
+ * [--stems=N] [--zipf=S] [--miss=F] [--compress=F,...] [--seed=N] output.txt
+ */
+public class WorkloadGenerator {
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+    private static final String[] MIX_NAMES = { "add", "remove", "get", "count", "seq" };
+    private static final int[] MIX_TYPES = { OperationType.ADD, OperationType.REMOVE, OperationType.GET_DEF,
+            OperationType.COUNT, OperationType.GET_SEQ };
+
+    // configuration
+    private long words = 100_000;
+    private long ops = -1; // twice the words unless given
+    private long preload = 0;
+    private final double[] mix = { 50, 10, 20, 15, 5 };
+    private String lengthKind = "uniform";
+    private double lengthA = 3;
+    private double lengthB = 12;
+    private String alphabet = "abcdefghijklmnopqrstuvwxyz";
+    private int prefixDepth = 0;
+    private int stems = 1000;
+    private double zipf = 0.99;
+    private double miss = 0.1;
+    private double[] compressAt = new double[0];
+    private long seed = 1;
+
+    // generation state
+    private final ReferenceDictionary reference = new ReferenceDictionary();
+    private long random; // splitmix64 state for choosing operations
+    private long added; // words of the universe added so far, in index order
+    private ZipfSampler sampler; // over the first samplerSize words; rebuilt when added changes
+    private long samplerSize;
+    private long updates;
+    private final long[] counts = new long[OperationType.GET_SEQ + 1];
+
+    /**
+     * Mixes a 64-bit value the way splitmix64 finishes its output
+     */
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private long nextLong() {
+        random += GOLDEN;
+        return mix64(random);
+    }
+
+    private double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * Gives a uniform index in [0, bound)
+     */
+    private long nextIndex(long bound) {
+        return (long) (nextDouble() * bound);
+    }
+
+    /**
+     * Builds the word with the given index from the seed alone
+     */
+    String word(long index) {
+        long state = mix64(seed ^ (index * GOLDEN));
+        state += GOLDEN;
+        double u1 = (mix64(state) >>> 11) * 0x1.0p-53;
+        state += GOLDEN;
+        double u2 = (mix64(state) >>> 11) * 0x1.0p-53;
+        int length;
+        switch (lengthKind) {
+            case "fixed":
+                length = (int) lengthA;
+                break;
+            case "normal":
+                double gaussian = Math.sqrt(-2 * Math.log(1 - u1)) * Math.cos(2 * Math.PI * u2);
+                length = (int) Math.round(lengthA + lengthB * gaussian);
+                break;
+            default:
+                length = (int) lengthA + (int) (u1 * ((int) lengthB - (int) lengthA + 1));
+                break;
+        }
+        length = Math.max(length, prefixDepth + 1);
+
+        StringBuilder sb = new StringBuilder(length);
+        if (prefixDepth > 0) {
+            state += GOLDEN;
+            long stem = Long.remainderUnsigned(mix64(state), stems);
+            long stemState = mix64(~seed ^ (stem * GOLDEN));
+            for (int i = 0; i < prefixDepth; i++) {
+                stemState += GOLDEN;
+                sb.append(alphabet.charAt((int) Long.remainderUnsigned(mix64(stemState), alphabet.length())));
+            }
+        }
+        while (sb.length() < length) {
+            state += GOLDEN;
+            sb.append(alphabet.charAt((int) Long.remainderUnsigned(mix64(state), alphabet.length())));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Picks one of the words added so far, the earlier ones more often
+     */
+    private String popularWord() {
+        if (zipf == 0)
+            return word(nextIndex(added));
+        if (sampler == null || samplerSize != added) {
+            sampler = new ZipfSampler(added, zipf);
+            samplerSize = added;
+        }
+        return word(sampler.sample(this::nextDouble) - 1);
+    }
+
+    private String lookupWord() {
+        if (nextDouble() < miss)
+            return word(words + nextIndex(Math.max(words, 1)));
+        return popularWord();
+    }
+
+    private int nextType() {
+        double total = 0;
+        for (double weight : mix) {
+            total += weight;
+        }
+        double pick = nextDouble() * total;
+        for (int i = 0; i < mix.length; i++) {
+            pick -= mix[i];
+            if (pick < 0)
+                return MIX_TYPES[i];
+        }
+        return OperationType.ADD;
+    }
+
+    private void add(Writer out, String word, String definition) throws IOException {
+        reference.add(word, definition);
+        out.write("1 " + word + " " + definition + "\n");
+        counts[OperationType.ADD]++;
+    }
+
+    /**
+     * Writes one operation of the given type together with its expected result
+     */
+    private void write(Writer out, int type, long op) throws IOException {
+        if (type == OperationType.ADD || added == 0) {
+            if (added < words) {
+                add(out, word(added), "definition " + added);
+                added++;
+            } else {
+                updates++;
+                add(out, popularWord(), "update " + op);
+            }
+            return;
+        }
+        counts[type]++;
+        switch (type) {
+            case OperationType.REMOVE: {
+                String word = popularWord();
+                reference.remove(word);
+                out.write("2 " + word + "\n");
+                break;
+            }
+            case OperationType.GET_DEF: {
+                String word = lookupWord();
+                out.write("3 " + word + " " + reference.getDefinition(word) + "\n");
+                break;
+            }
+            case OperationType.COUNT: {
+                String word = popularWord();
+                String prefix = word.substring(0, 1 + (int) nextIndex(word.length()));
+                out.write("4 " + prefix + " " + reference.countPrefix(prefix) + "\n");
+                break;
+            }
+            case OperationType.GET_SEQ: {
+                String word = lookupWord();
+                out.write("6 " + word + " " + reference.getSequence(word) + "\n");
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    void generate(String path) throws IOException {
+        if (ops < 0)
+            ops = 2 * words;
+        random = mix64(seed);
+        long[] compressOps = new long[compressAt.length];
+        for (int i = 0; i < compressAt.length; i++) {
+            compressOps[i] = Math.min(ops - 1, (long) (compressAt[i] * ops));
+        }
+
+        long start = System.nanoTime();
+        try (Writer out = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8), 1 << 16)) {
+            out.write(ops + "\n");
+            int nextCompress = 0;
+            for (long op = 0; op < ops; op++) {
+                if (nextCompress < compressOps.length && compressOps[nextCompress] <= op) {
+                    nextCompress++;
+                    reference.compress();
+                    out.write("5\n");
+                    counts[OperationType.COMPRESS]++;
+                } else if (op < preload) {
+                    write(out, OperationType.ADD, op);
+                } else {
+                    write(out, nextType(), op);
+                }
+            }
+        }
+
+        System.out.println(String.format("%s: %d operations in %.1f s, %d words stored at the end", path, ops,
+                (System.nanoTime() - start) / 1e9, reference.countPrefix("")));
+        for (int type = OperationType.ADD; type <= OperationType.GET_SEQ; type++) {
+            System.out.println(String.format("  %-15s %12d", OperationType.name(type), counts[type]));
+        }
+        System.out.println(String.format("  %-15s %12d", "of which updates", updates));
+    }
+
+    private void parseMix(String spec) {
+        Arrays.fill(mix, 0);
+        for (String part : spec.split(",")) {
+            String[] kv = part.split(":");
+            int i = 0;
+            while (i < MIX_NAMES.length && !MIX_NAMES[i].equals(kv[0]))
+                i++;
+            if (i == MIX_NAMES.length || kv.length != 2)
+                throw new IllegalArgumentException("Unknown mix entry: " + part);
+            mix[i] = Double.parseDouble(kv[1]);
+        }
+    }
+
+    private void parseLength(String spec) {
+        String[] parts = spec.split(":");
+        lengthKind = parts[0];
+        switch (lengthKind) {
+            case "fixed":
+                lengthA = Integer.parseInt(parts[1]);
+                break;
+            case "uniform":
+            case "normal":
+                lengthA = Double.parseDouble(parts[1]);
+                lengthB = Double.parseDouble(parts[2]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown length distribution: " + spec);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        WorkloadGenerator generator = new WorkloadGenerator();
+        String path = null;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--words=")) {
+                generator.words = Long.parseLong(value);
+            } else if (arg.startsWith("--ops=")) {
+                generator.ops = Long.parseLong(value);
+            } else if (arg.startsWith("--preload=")) {
+                generator.preload = Long.parseLong(value);
+            } else if (arg.startsWith("--mix=")) {
+                generator.parseMix(value);
+            } else if (arg.startsWith("--length=")) {
+                generator.parseLength(value);
+            } else if (arg.startsWith("--alphabet=")) {
+                if (!value.matches("[a-z]+")) {
+                    System.out.println("Usage: --alphabet=abc... takes one or more of the letters a to z");
+                    return;
+                }
+                generator.alphabet = value;
+            } else if (arg.startsWith("--prefix-depth=")) {
+                generator.prefixDepth = Integer.parseInt(value);
+            } else if (arg.startsWith("--stems=")) {
+                generator.stems = Math.max(1, Integer.parseInt(value));
+            } else if (arg.startsWith("--zipf=")) {
+                generator.zipf = Double.parseDouble(value);
+            } else if (arg.startsWith("--miss=")) {
+                generator.miss = Double.parseDouble(value);
+            } else if (arg.startsWith("--compress=")) {
+                String[] parts = value.split(",");
+                generator.compressAt = new double[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    generator.compressAt[i] = Double.parseDouble(parts[i]);
+                }
+                Arrays.sort(generator.compressAt);
+            } else if (arg.startsWith("--seed=")) {
+                generator.seed = Long.parseLong(value);
+            } else if (arg.startsWith("--")) {
+                System.out.println("Unknown option: " + arg);
+                return;
+            } else {
+                path = arg;
+            }
+        }
+        if (path == null) {
+            System.out.println("No output file provided");
+            return;
+        }
+        generator.generate(path);
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Samples ranks 1..n with probability proportional to 1 / rank^s, in constant
+ * expected time for any n, by rejection-inversion (Hormann and Derflinger,
+ * "Rejection-inversion to generate variates from monotone discrete
+ * distributions", 1996)
+ */
+class ZipfSampler {
+    interface Uniform {
+        double next();
+    }
+
+    private final long n;
+    private final double s;
+    private final double hIntegralX1;
+    private final double hIntegralN;
+    private final double threshold;
+
+    ZipfSampler(long n, double s) {
+        this.n = n;
+        this.s = s;
+        hIntegralX1 = hIntegral(1.5) - 1;
+        hIntegralN = hIntegral(n + 0.5);
+        threshold = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+    }
+
+    long sample(Uniform uniform) {
+        while (true) {
+            double u = hIntegralN + uniform.next() * (hIntegralX1 - hIntegralN);
+            double x = hIntegralInverse(u);
+            long k = (long) (x + 0.5);
+            if (k < 1)
+                k = 1;
+            else if (k > n)
+                k = n;
+            if (k - x <= threshold || u >= hIntegral(k + 0.5) - h(k))
+                return k;
+        }
+    }
+
+    private double h(double x) {
+        return Math.exp(-s * Math.log(x));
+    }
+
+    private double hIntegral(double x) {
+        double logX = Math.log(x);
+        return helper2((1 - s) * logX) * logX;
+    }
+
+    private double hIntegralInverse(double x) {
+        double t = Math.max(x * (1 - s), -1);
+        return Math.exp(helper1(t) * x);
+    }
+
+    /**
+     * log(1 + x) / x, accurate near 0
+     */
+    private static double helper1(double x) {
+        return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+    }
+
+    /**
+     * (exp(x) - 1) / x, accurate near 0
+     */
+    private static double helper2(double x) {
+        return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+    }
+}